@@ -0,0 +1,230 @@
+package designpatterns.benchmark;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Small benchmark harness shared by the benchmarks of the patterns (JMH is not available here)
+ * 1. every case runs in a new JVM, so that JIT profile of one case (e.g. a call site which has seen many
+ *    implementations) does not slow down the cases measured after it
+ * 2. operation is called in batches, batch size is chosen so that checking the clock is not measured
+ * 3. results are consumed by a blackhole so that JIT can not remove the operation as dead code
+ * 4. time and bytes allocated are reported per operation, or per element for bulk operations
+ *
+ * Usage (in main of a benchmark):
+ * new BenchmarkRunner()
+ *         .add("eager", () -> MongoDbConn::getInstance)
+ *         .run();
+ *
+ * Properties: -Dbenchmark.warmUpMillis (500) -Dbenchmark.measureMillis (1000)
+ */
+public class BenchmarkRunner {
+    // set on the forked JVM, which measures only that case
+    private static final String CASE_PROPERTY = "benchmark.case";
+    private static final String THREADS_PROPERTY = "benchmark.threads";
+    // a batch takes at least this long
+    private static final long MIN_BATCH_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /**
+     * Prepares the case and returns the operation to be measured; runs only in the JVM measuring that case
+     */
+    @FunctionalInterface
+    public interface Setup {
+        Supplier<?> setUp() throws Exception;
+    }
+
+    private final Map<String, Setup> cases = new LinkedHashMap<>();
+    private int[] threads = {1};
+    private long elementsPerOperation = 1;
+    private String unit = "op";
+    private long warmUpMillis = Long.getLong("benchmark.warmUpMillis", 500);
+    private long measureMillis = Long.getLong("benchmark.measureMillis", 1000);
+
+    public BenchmarkRunner add(String name, Setup setup) {
+        cases.put(name, setup);
+        return this;
+    }
+
+    // each case is measured with each of these thread counts
+    public BenchmarkRunner threads(int... threads) {
+        this.threads = threads.clone();
+        return this;
+    }
+
+    // operation works on many elements (e.g. converts an array), results are reported per element
+    public BenchmarkRunner perElement(long elementsPerOperation, String unit) {
+        this.elementsPerOperation = elementsPerOperation;
+        this.unit = unit;
+        return this;
+    }
+
+    public BenchmarkRunner measure(long millis) {
+        this.measureMillis = millis;
+        return this;
+    }
+
+    /**
+     * Forks a JVM for each case and thread count, with same classpath, JVM options and arguments,
+     * main class is the class calling this method
+     */
+    public void run(String... args) throws Exception {
+        String caseName = System.getProperty(CASE_PROPERTY);
+        if (caseName != null) {
+            runCase(caseName, Integer.getInteger(THREADS_PROPERTY, 1));
+            return;
+        }
+        Class<?> mainClass = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE).getCallerClass();
+        System.out.printf("%-28s %8s %16s %12s %14s%n", "case", "threads", unit + "s/s", "ns/" + unit, "bytes/" + unit);
+        for (String name : cases.keySet()) {
+            for (int threadCount : threads) {
+                List<String> command = new ArrayList<>();
+                command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+                command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+                command.add("-D" + CASE_PROPERTY + "=" + name);
+                command.add("-D" + THREADS_PROPERTY + "=" + threadCount);
+                command.add("-Dbenchmark.warmUpMillis=" + warmUpMillis);
+                command.add("-Dbenchmark.measureMillis=" + measureMillis);
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(mainClass.getName());
+                command.addAll(List.of(args));
+                int exitCode = new ProcessBuilder(command).inheritIO().start().waitFor();
+                if (exitCode != 0) {
+                    throw new IllegalStateException("Case " + name + " failed with exit code " + exitCode);
+                }
+            }
+        }
+    }
+
+    private void runCase(String name, int threadCount) throws Exception {
+        Setup setup = cases.get(name);
+        if (setup == null) {
+            throw new IllegalArgumentException("Unknown case " + name + ", known cases are " + cases.keySet());
+        }
+        Supplier<?> operation = setup.setUp();
+        Blackhole blackhole = new Blackhole();
+        int batch = calibrate(operation, blackhole);
+
+        measure(operation, threadCount, batch, warmUpMillis);
+        Result result = measure(operation, threadCount, batch, measureMillis);
+
+        double operations = (double) result.operations * elementsPerOperation;
+        System.out.printf("%-28s %8d %16.0f %12.3f %14.2f%n", name, threadCount,
+                operations * 1_000_000_000.0 / result.wallNanos,
+                result.threadNanos / operations, result.allocatedBytes / operations);
+    }
+
+    // doubles the batch till it takes MIN_BATCH_NANOS, also starts warming up
+    private static int calibrate(Supplier<?> operation, Blackhole blackhole) {
+        int batch = 1;
+        while (batch < (1 << 24)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < batch; i++) {
+                blackhole.consume(operation.get());
+            }
+            if (System.nanoTime() - start >= MIN_BATCH_NANOS) {
+                break;
+            }
+            batch *= 2;
+        }
+        return batch;
+    }
+
+    private static Result measure(Supplier<?> operation, int threadCount, int batch, long durationMillis) throws InterruptedException {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        AtomicBoolean stopped = new AtomicBoolean();
+        LongAdder operations = new LongAdder();
+        LongAdder threadNanos = new LongAdder();
+        LongAdder allocatedBytes = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            workers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                // one per thread, so that threads do not write to same fields
+                Blackhole blackhole = new Blackhole();
+                long threadId = Thread.currentThread().getId();
+                long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+                long begin = System.nanoTime();
+                long count = 0;
+                while (!stopped.get()) {
+                    for (int j = 0; j < batch; j++) {
+                        blackhole.consume(operation.get());
+                    }
+                    count += batch;
+                }
+                threadNanos.add(System.nanoTime() - begin);
+                allocatedBytes.add(threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore);
+                operations.add(count);
+            });
+            workers[i].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep(durationMillis);
+        stopped.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return new Result(operations.sum(), System.nanoTime() - begin, threadNanos.sum(), allocatedBytes.sum());
+    }
+
+    private static class Result {
+        final long operations;
+        final long wallNanos;
+        // summed over the threads
+        final long threadNanos;
+        final long allocatedBytes;
+
+        Result(long operations, long wallNanos, long threadNanos, long allocatedBytes) {
+            this.operations = operations;
+            this.wallNanos = wallNanos;
+            this.threadNanos = threadNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    /**
+     * Consumes the result so that JIT can not remove the operation as dead code
+     * result is stored once in a while, at moments JIT can not predict; so a new object escapes
+     * and its allocation can not be removed either (unlike comparing it with a field, which JIT knows is false)
+     */
+    private static class Blackhole {
+        // at most one store per million results
+        private static final int MAX_MASK = (1 << 20) - 1;
+
+        private Object stored;
+        private int random = (int) System.nanoTime() | 1;
+        private int mask = 1;
+
+        void consume(Object result) {
+            // xorshift random numbers, mask grows so that stores become rarer, up to MAX_MASK
+            int next = random;
+            next ^= next << 13;
+            next ^= next >>> 17;
+            next ^= next << 5;
+            random = next;
+            if ((next & mask) == 0) {
+                stored = result;
+                // stores keep happening now and then, otherwise JIT would treat the branch as never taken
+                if (mask < MAX_MASK) {
+                    mask = (mask << 1) | 1;
+                }
+            }
+        }
+    }
+}
@@ -1,5 +1,17 @@
 package designpatterns.creational;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * This pattern is similar to Factory pattern but here in the Abstract Factory pattern,
  * we get rid of if-else or switch-case block and have a factory class for each sub-class.
@@ -15,6 +27,10 @@ public class AbstractFactoryDP {
          * Though this pattern add an extra layer of abstraction to hide the implementation
          * It also introduces additional complexity to codebase and number of classes increases
          */
+
+        // factory is found by name, MacFactory is loaded only now
+        ComputerFactory.getComputer("mac").getSpecification();
+        System.out.println("known: " + ComputerFactory.getComputerNames() + ", loaded: " + ComputerFactory.getLoadedComputerNames());
     }
 }
 
@@ -71,4 +87,102 @@ class ComputerFactory {
     public static Computer getComputer(ComputerAbstractFactory computerAbstractFactory) {
         return computerAbstractFactory.getComputer();
     }
+
+    /**
+     * finds the factory by computer name in the ComputerAbstractFactory.index resource
+     * factory class is loaded and created only on first request, later requests use the same factory
+     */
+    public static Computer getComputer(String name) {
+        return getComputer(ComputerFactoryIndex.getFactory(name));
+    }
+
+    public static Set<String> getComputerNames() {
+        return ComputerFactoryIndex.getClassNames().keySet();
+    }
+
+    public static Set<String> getLoadedComputerNames() {
+        return Collections.unmodifiableSet(ComputerFactoryIndex.FACTORIES.keySet());
+    }
+}
+
+/**
+ * Index of ComputerAbstractFactory implementations: lines of name=factory class in ComputerAbstractFactory.index,
+ * which is kept next to the factories (and can be generated while building)
+ * No classpath scanning: only the index is read on startup, and only class names are kept,
+ * so a factory class is not loaded (no metaspace used) until its computer is requested
+ *
+ * Index is a resource, it must be on the classpath next to the classes; javac does not copy it, hence either
+ * 1. copy it while building: cp designpatterns/creational/ComputerAbstractFactory.index out/designpatterns/creational/
+ * 2. or add the source root to the classpath: java -cp out:. designpatterns.creational.AbstractFactoryDP
+ */
+class ComputerFactoryIndex {
+    static final String RESOURCE = "ComputerAbstractFactory.index";
+
+    static final Map<String, ComputerAbstractFactory> FACTORIES = new ConcurrentHashMap<>();
+
+    // index is read on first use; not in a holder class, so that a missing index is reported as it is on every call
+    private static volatile Map<String, String> classNames;
+
+    static Map<String, String> getClassNames() {
+        Map<String, String> names = classNames;
+        if (names == null) {
+            synchronized (ComputerFactoryIndex.class) {
+                names = classNames;
+                if (names == null) {
+                    names = readIndex();
+                    classNames = names;
+                }
+            }
+        }
+        return names;
+    }
+
+    static ComputerAbstractFactory getFactory(String name) {
+        ComputerAbstractFactory factory = FACTORIES.get(name);
+        if (factory != null) {
+            return factory;
+        }
+        String className = getClassNames().get(name);
+        if (className == null) {
+            throw new IllegalArgumentException("Unknown computer " + name + ", known computers are " + getClassNames().keySet());
+        }
+        // only one thread loads the factory, others wait for it
+        return FACTORIES.computeIfAbsent(name, key -> createFactory(className));
+    }
+
+    private static ComputerAbstractFactory createFactory(String className) {
+        try {
+            Class<? extends ComputerAbstractFactory> type = Class.forName(className, true, ComputerFactoryIndex.class.getClassLoader())
+                    .asSubclass(ComputerAbstractFactory.class);
+            return type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalStateException("Could not create factory " + className + " listed in " + RESOURCE, e);
+        }
+    }
+
+    private static Map<String, String> readIndex() {
+        Map<String, String> classNames = new HashMap<>();
+        try (InputStream in = ComputerFactoryIndex.class.getResourceAsStream(RESOURCE)) {
+            if (in == null) {
+                throw new IllegalStateException("Resource designpatterns/creational/" + RESOURCE
+                        + " not found on the classpath, copy it next to the compiled classes or add the source root to the classpath");
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int separator = line.indexOf('=');
+                if (separator <= 0) {
+                    throw new IllegalStateException("Invalid line in " + RESOURCE + ": " + line);
+                }
+                classNames.put(line.substring(0, separator).trim(), line.substring(separator + 1).trim());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return Collections.unmodifiableMap(classNames);
+    }
 }
\ No newline at end of file
@@ -1,8 +1,28 @@
 package designpatterns.creational;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.StringJoiner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * Useful to create object for a class in which a lot of optional fields are present
@@ -35,6 +55,43 @@ public class BuilderDP {
          */
         Student student1 = new Director(new EnggStudentBuilder().name("pqr").rollNo(434)).createStudent();
         System.out.println(student1);
+
+        /**
+         * Creating lots of students: builder (and director) can be reset and reused,
+         * so that only the Student object is allocated for each record
+         */
+        Director director = new Director(new EnggStudentBuilder());
+        for (int rollNo = 500; rollNo < 503; rollNo++) {
+            System.out.println(director.createStudent(rollNo, "student-" + rollNo));
+        }
+        Student reused = EnggStudentBuilder.reusable().rollNo(600).name("lmn").subjects(List.of("CN")).build();
+        System.out.println(reused);
+
+        /**
+         * Building students from a (large) file of records: rollNo,name,subject1;subject2
+         * file is read in chunks which are parsed in parallel
+         */
+        try {
+            Path file = Files.createTempFile("students", ".csv");
+            Files.write(file, List.of("700,abc,AI;ML", "701,xyz,", "702,pqr,OS;DB;CN"));
+            IngestionResult result = new StudentIngestion(2, 1024).ingest(file, System.out::println);
+            System.out.println(result);
+            Files.delete(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        /**
+         * Keeping lots of students in memory: builder fields are stored column wise in a table,
+         * no Student object is created until it is asked for
+         */
+        StudentTable table = new StudentTable();
+        StudentBuilder rowBuilder = EnggStudentBuilder.reusable();
+        table.add(rowBuilder.rollNo(800).name("abc").subjects(List.of("AI", "ML")));
+        table.add(rowBuilder.reset().rollNo(801).name("xyz").subjects(List.of("OS", "DB")));
+        table.add(rowBuilder.reset().rollNo(802).name("abc").subjects(List.of("AI", "ML")));
+        table.forEachWithSubject("AI", row -> System.out.println(row.getRollNo() + " " + row.getName()));
+        System.out.println(table.toStudent(table.findRow(801)));
     }
 }
 
@@ -92,10 +149,37 @@ abstract class StudentBuilder {
     public StudentBuilder builder() {
         return this;
     }
+
+    // clears all fields so that same builder can be used for the next object
+    // safe because Student copies the fields while being built
+    public StudentBuilder reset() {
+        this.rollNo = 0;
+        this.name = null;
+        this.subjects = null;
+        return this;
+    }
 }
 
 class EnggStudentBuilder extends StudentBuilder {
 
+    // builder is not thread safe, hence one builder per thread
+    private static final ThreadLocal<EnggStudentBuilder> REUSABLE = ThreadLocal.withInitial(EnggStudentBuilder::new);
+
+    /**
+     * returns builder of the current thread, already reset
+     * it is shared by all the code running on this thread and is reset by the next reusable() call,
+     * hence it must be used right away: not kept (e.g. by a Director), and not passed to other threads
+     */
+    public static EnggStudentBuilder reusable() {
+        EnggStudentBuilder builder = REUSABLE.get();
+        builder.reset();
+        return builder;
+    }
+
+    static boolean isReusable(StudentBuilder builder) {
+        return REUSABLE.get() == builder;
+    }
+
     @Override
     public StudentBuilder subjects(List<String> subjects) {
         this.subjects = subjects;
@@ -107,17 +191,542 @@ class EnggStudentBuilder extends StudentBuilder {
  * Using Director layer you can create builder object according to business logic
  */
 class Director {
+    // immutable, hence shared by all the students instead of creating a new list for each
+    private static final List<String> ENGG_SUBJECTS = List.of("EG", "EXTC");
+
     StudentBuilder studentBuilder;
+    private final List<String> defaultSubjects;
+
     Director(StudentBuilder studentBuilder){
+        // Director keeps the builder, the shared one would be reset under it by the next reusable() call
+        if (EnggStudentBuilder.isReusable(studentBuilder)) {
+            throw new IllegalArgumentException("Director needs its own builder, not EnggStudentBuilder.reusable()");
+        }
         // if student is of engg stream then add these subjects
         if(studentBuilder instanceof EnggStudentBuilder){
-            this.studentBuilder = studentBuilder.builder().subjects(List.of("EG", "EXTC"));
+            this.defaultSubjects = ENGG_SUBJECTS;
         } else {
-            this.studentBuilder = studentBuilder.builder().subjects(Collections.EMPTY_LIST);
+            this.defaultSubjects = Collections.emptyList();
         }
+        this.studentBuilder = studentBuilder.builder().subjects(defaultSubjects);
     }
 
     public Student createStudent(){
         return studentBuilder.build();
     }
+
+    // reuses the builder for each student, only the Student object is created
+    public Student createStudent(int rollNo, String name){
+        return studentBuilder.reset()
+                .rollNo(rollNo)
+                .name(name)
+                .subjects(defaultSubjects)
+                .build();
+    }
+}
+
+/**
+ * Builds Student objects from a file of records, one per line: rollNo,name,subject1;subject2
+ * if subjects are missing, Director's default subjects are used
+ *
+ * 1. file is memory mapped chunk by chunk (no copying into heap buffers), each chunk ends at a line end
+ * 2. chunks are parsed in parallel, each thread builds students with its own reusable builder
+ * 3. only a few chunks are in flight at a time, and students are handed to the sink as soon as they are built,
+ *    so memory stays bounded whatever the file size is
+ *
+ * Usage: java designpatterns.creational.StudentIngestion <file> [parallelism]
+ */
+class StudentIngestion {
+    private static final int MAX_NAME_BYTES = 1024;
+
+    private final int parallelism;
+    private final int chunkSize;
+
+    StudentIngestion(int parallelism, int chunkSize) {
+        if (parallelism < 1 || chunkSize < 1) {
+            throw new IllegalArgumentException("parallelism and chunkSize must be positive");
+        }
+        this.parallelism = parallelism;
+        this.chunkSize = chunkSize;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int parallelism = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        LongAdder built = new LongAdder();
+        IngestionResult result = new StudentIngestion(parallelism, 16 * 1024 * 1024)
+                .ingest(Paths.get(args[0]), student -> built.increment());
+        System.out.println(result);
+    }
+
+    /**
+     * sink is called from many threads at the same time, hence it must be thread safe
+     */
+    public IngestionResult ingest(Path file, Consumer<Student> sink) throws IOException {
+        long start = System.nanoTime();
+        LongAdder records = new LongAdder();
+        LongAdder malformed = new LongAdder();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        // limits chunks being parsed or waiting to be parsed
+        Semaphore inFlight = new Semaphore(parallelism * 2);
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long chunkStart = 0;
+            while (chunkStart < size && failure.get() == null) {
+                long chunkEnd = nextLineStart(channel, Math.min(chunkStart + chunkSize, size), size);
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart, chunkEnd - chunkStart);
+                inFlight.acquireUninterruptibly();
+                executor.execute(() -> {
+                    try {
+                        parseChunk(chunk, sink, records, malformed);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+                chunkStart = chunkEnd;
+            }
+            // wait for the last chunks
+            inFlight.acquireUninterruptibly(parallelism * 2);
+        } finally {
+            executor.shutdown();
+        }
+
+        Throwable error = failure.get();
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error != null) {
+            throw new IllegalStateException("Ingestion of " + file + " failed", error);
+        }
+        return new IngestionResult(records.sum(), malformed.sum(), System.nanoTime() - start);
+    }
+
+    // position right after the first line end at or after given position
+    private static long nextLineStart(FileChannel channel, long position, long size) throws IOException {
+        if (position >= size) {
+            return size;
+        }
+        ByteBuffer window = ByteBuffer.allocate(8192);
+        long windowStart = position - 1;
+        while (windowStart < size) {
+            window.clear();
+            int read = channel.read(window, windowStart);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (window.get(i) == '\n') {
+                    return windowStart + i + 1;
+                }
+            }
+            windowStart += read;
+        }
+        return size;
+    }
+
+    private static void parseChunk(MappedByteBuffer chunk, Consumer<Student> sink, LongAdder records, LongAdder malformed) {
+        StudentBuilder builder = EnggStudentBuilder.reusable();
+        // director keeps its builder, hence it gets one of its own
+        Director director = new Director(new EnggStudentBuilder());
+        byte[] text = new byte[MAX_NAME_BYTES];
+        long parsed = 0;
+        int limit = chunk.limit();
+        int lineStart = 0;
+        while (lineStart < limit) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && chunk.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int contentEnd = lineEnd > lineStart && chunk.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+            if (contentEnd > lineStart) {
+                Student student = parseLine(chunk, lineStart, contentEnd, builder, director, text);
+                if (student == null) {
+                    malformed.increment();
+                } else {
+                    sink.accept(student);
+                    parsed++;
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        records.add(parsed);
+    }
+
+    // returns null if the line is not a valid record
+    private static Student parseLine(ByteBuffer chunk, int from, int to, StudentBuilder builder, Director director, byte[] text) {
+        int position = from;
+        int rollNo = 0;
+        boolean digits = false;
+        while (position < to && chunk.get(position) != ',') {
+            byte b = chunk.get(position++);
+            if (b < '0' || b > '9' || rollNo > (Integer.MAX_VALUE - 9) / 10) {
+                return null;
+            }
+            rollNo = rollNo * 10 + (b - '0');
+            digits = true;
+        }
+        if (!digits || position == to) {
+            return null;
+        }
+        int nameStart = ++position;
+        while (position < to && chunk.get(position) != ',') {
+            position++;
+        }
+        String name = decode(chunk, nameStart, position, text);
+        if (name == null || name.isEmpty()) {
+            return null;
+        }
+        if (position + 1 >= to) {
+            return director.createStudent(rollNo, name);
+        }
+        List<String> subjects = new ArrayList<>(4);
+        int subjectStart = position + 1;
+        for (int i = subjectStart; i <= to; i++) {
+            if (i == to || chunk.get(i) == ';') {
+                if (i > subjectStart) {
+                    String subject = decode(chunk, subjectStart, i, text);
+                    if (subject == null) {
+                        return null;
+                    }
+                    subjects.add(subject);
+                }
+                subjectStart = i + 1;
+            }
+        }
+        return builder.reset()
+                .rollNo(rollNo)
+                .name(name)
+                .subjects(List.copyOf(subjects))
+                .build();
+    }
+
+    private static String decode(ByteBuffer chunk, int from, int to, byte[] text) {
+        int length = to - from;
+        if (length > text.length) {
+            return null;
+        }
+        chunk.get(from, text, 0, length);
+        return new String(text, 0, length, StandardCharsets.UTF_8);
+    }
+}
+
+class IngestionResult {
+    private final long records;
+    private final long malformedRecords;
+    private final long elapsedNanos;
+
+    IngestionResult(long records, long malformedRecords, long elapsedNanos) {
+        this.records = records;
+        this.malformedRecords = malformedRecords;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public long getMalformedRecords() {
+        return malformedRecords;
+    }
+
+    public double getRecordsPerSecond() {
+        return elapsedNanos == 0 ? 0 : records * 1_000_000_000.0 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", IngestionResult.class.getSimpleName() + "[", "]")
+                .add("records=" + records)
+                .add("malformedRecords=" + malformedRecords)
+                .add("elapsedMillis=" + elapsedNanos / 1_000_000)
+                .add(String.format("recordsPerSecond=%.0f", getRecordsPerSecond()))
+                .toString();
+    }
+}
+
+/**
+ * Column wise storage of students, for keeping millions of them in memory
+ * a Student object costs object headers and references for each field, list and string,
+ * here each student is a few ints in arrays:
+ * 1. roll numbers are kept in an int[]
+ * 2. names are deduplicated, each row keeps only the id of its name
+ * 3. subject lists are interned as well (most of the students share the same subjects), each row keeps the id of its list
+ * Scans run over the int[] columns, which is much faster than following references of Student objects
+ *
+ * Not thread safe: rows are added by a single thread, and can be read by others once it is done
+ */
+class StudentTable {
+    private static final int NONE = -1;
+
+    private int size;
+    private int[] rollNos = new int[16];
+    private int[] nameIds = new int[16];
+    private int[] subjectsIds = new int[16];
+
+    private final Map<String, Integer> nameIndex = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    // each distinct subject list, and ids of the subjects in it
+    private final Map<List<String>, Integer> subjectsIndex = new HashMap<>();
+    private final List<List<String>> subjectLists = new ArrayList<>();
+    private final List<int[]> subjectListMembers = new ArrayList<>();
+    private final Map<String, Integer> subjectIndex = new HashMap<>();
+
+    /**
+     * stores current fields of the builder, builder can be reset and reused afterwards
+     * @return row of the student
+     */
+    public int add(StudentBuilder builder) {
+        if (size == rollNos.length) {
+            int capacity = size * 2;
+            rollNos = Arrays.copyOf(rollNos, capacity);
+            nameIds = Arrays.copyOf(nameIds, capacity);
+            subjectsIds = Arrays.copyOf(subjectsIds, capacity);
+        }
+        rollNos[size] = builder.rollNo;
+        nameIds[size] = nameId(builder.name);
+        subjectsIds[size] = subjectsId(builder.subjects);
+        return size++;
+    }
+
+    private int nameId(String name) {
+        if (name == null) {
+            return NONE;
+        }
+        Integer id = nameIndex.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            nameIndex.put(name, id);
+        }
+        return id;
+    }
+
+    private int subjectsId(List<String> subjects) {
+        if (subjects == null) {
+            return NONE;
+        }
+        Integer id = subjectsIndex.get(subjects);
+        if (id == null) {
+            List<String> copy = List.copyOf(subjects);
+            int[] members = new int[copy.size()];
+            for (int i = 0; i < members.length; i++) {
+                members[i] = subjectIndex.computeIfAbsent(copy.get(i), subject -> subjectIndex.size());
+            }
+            id = subjectLists.size();
+            subjectLists.add(copy);
+            subjectListMembers.add(members);
+            subjectsIndex.put(copy, id);
+        }
+        return id;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getRollNo(int row) {
+        checkRow(row);
+        return rollNos[row];
+    }
+
+    public String getName(int row) {
+        checkRow(row);
+        return nameIds[row] == NONE ? null : names.get(nameIds[row]);
+    }
+
+    // returned list is shared by all the rows having same subjects and can not be modified
+    public List<String> getSubjects(int row) {
+        checkRow(row);
+        return subjectsIds[row] == NONE ? null : subjectLists.get(subjectsIds[row]);
+    }
+
+    /**
+     * creates a Student object of the row, only when a real object is needed
+     * uses its own builder: the reusable one of the thread might be half filled by the caller
+     */
+    public Student toStudent(int row) {
+        return new EnggStudentBuilder()
+                .rollNo(getRollNo(row))
+                .name(getName(row))
+                .subjects(getSubjects(row))
+                .build();
+    }
+
+    // first row with given roll number, or -1
+    public int findRow(int rollNo) {
+        for (int row = 0; row < size; row++) {
+            if (rollNos[row] == rollNo) {
+                return row;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * same view object is passed for every row (flyweight), it is only valid during the call
+     */
+    public void forEach(Consumer<StudentView> action) {
+        StudentView view = new StudentView(this);
+        for (int row = 0; row < size; row++) {
+            action.accept(view.moveTo(row));
+        }
+    }
+
+    public void forEachWithSubject(String subject, Consumer<StudentView> action) {
+        boolean[] matching = subjectListsWith(subject);
+        if (matching == null) {
+            return;
+        }
+        StudentView view = new StudentView(this);
+        for (int row = 0; row < size; row++) {
+            int id = subjectsIds[row];
+            if (id != NONE && matching[id]) {
+                action.accept(view.moveTo(row));
+            }
+        }
+    }
+
+    public int countWithSubject(String subject) {
+        boolean[] matching = subjectListsWith(subject);
+        if (matching == null) {
+            return 0;
+        }
+        int count = 0;
+        for (int row = 0; row < size; row++) {
+            int id = subjectsIds[row];
+            if (id != NONE && matching[id]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // subject is matched once per distinct subject list instead of once per row
+    private boolean[] subjectListsWith(String subject) {
+        Integer subjectId = subjectIndex.get(subject);
+        if (subjectId == null) {
+            return null;
+        }
+        boolean[] matching = new boolean[subjectListMembers.size()];
+        for (int id = 0; id < matching.length; id++) {
+            for (int member : subjectListMembers.get(id)) {
+                if (member == subjectId) {
+                    matching[id] = true;
+                    break;
+                }
+            }
+        }
+        return matching;
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("row " + row + " of " + size);
+        }
+    }
+}
+
+/**
+ * Read only view of a row of StudentTable
+ */
+class StudentView {
+    private final StudentTable table;
+    private int row;
+
+    StudentView(StudentTable table) {
+        this.table = table;
+    }
+
+    StudentView moveTo(int row) {
+        this.row = row;
+        return this;
+    }
+
+    public int getRow() {
+        return row;
+    }
+
+    public int getRollNo() {
+        return table.getRollNo(row);
+    }
+
+    public String getName() {
+        return table.getName(row);
+    }
+
+    public List<String> getSubjects() {
+        return table.getSubjects(row);
+    }
+
+    public Student toStudent() {
+        return table.toStudent(row);
+    }
+}
+
+/**
+ * Compares heap used and subject scan time of a List of Student objects with StudentTable
+ * Usage: java designpatterns.creational.StudentTableBenchmark [students]
+ */
+class StudentTableBenchmark {
+    private static final List<List<String>> SUBJECTS = List.of(
+            List.of("AI", "ML"), List.of("OS", "DB"), List.of("EG", "EXTC"), List.of("CN", "DB", "ML"));
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        StudentBuilder builder = EnggStudentBuilder.reusable();
+
+        long before = usedHeap();
+        List<Student> students = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            students.add(fill(builder.reset(), i).build());
+        }
+        long objectsBytes = usedHeap() - before;
+
+        before = usedHeap();
+        StudentTable table = new StudentTable();
+        for (int i = 0; i < count; i++) {
+            table.add(fill(builder.reset(), i));
+        }
+        long tableBytes = usedHeap() - before;
+
+        System.out.printf("students=%d objects=%dMB table=%dMB%n", count, objectsBytes >> 20, tableBytes >> 20);
+
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            int matched = 0;
+            for (Student student : students) {
+                if (student.subjects.contains("ML")) {
+                    matched++;
+                }
+            }
+            long objectsNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int tableMatched = table.countWithSubject("ML");
+            long tableNanos = System.nanoTime() - start;
+
+            System.out.printf("scan objects=%dms (%d) table=%dms (%d)%n",
+                    objectsNanos / 1_000_000, matched, tableNanos / 1_000_000, tableMatched);
+        }
+        // keep both alive until measured
+        System.out.println(students.size() + table.size());
+    }
+
+    // few thousand distinct names, as in real data names repeat
+    private static StudentBuilder fill(StudentBuilder builder, int i) {
+        return builder.rollNo(i)
+                .name("student-" + (i % 5000))
+                .subjects(SUBJECTS.get(i % SUBJECTS.size()));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
 }
@@ -1,5 +1,14 @@
 package designpatterns.creational;
 
+import designpatterns.benchmark.BenchmarkRunner;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
 /**
  * create an object of class based on some condition
  */
@@ -25,19 +34,72 @@ public class FactoryDP {
          * Code is more clean and easy to extend
          */
 
+        // new shapes can be added at runtime without touching the factory
+        shapeFactory.register("Triangle", Triangle.class);
+        shapeFactory.getShape("Triangle").draw();
+
+        // unknown shape: no null check needed, nothing is drawn
+        shapeFactory.getShape("Hexagon").draw();
     }
 }
 
+/**
+ * Shapes are looked up in a registry instead of a switch, so that new shapes can be registered at runtime
+ * each shape is created by a supplier which is prepared while registering, so getShape is a map lookup and a call
+ */
 class ShapeFactory {
+    private final Map<String, Supplier<? extends Shape>> registry = new ConcurrentHashMap<>();
+
+    ShapeFactory() {
+        // Circle and Square have no state, hence one object of each is shared by all the callers
+        registerShared("Circle", new Circle());
+        registerShared("Square", new Square());
+    }
+
+    // returns NullShape for unknown shape, never null
     Shape getShape(String shape) {
-        switch (shape) {
-            case "Circle":
-                return new Circle();
-            case "Square":
-                return new Square();
-            default:
-                return null;
+        Supplier<? extends Shape> supplier = shape == null ? null : registry.get(shape);
+        return supplier == null ? NullShape.INSTANCE : supplier.get();
+    }
+
+    // new object is created by supplier on each call
+    void register(String shape, Supplier<? extends Shape> supplier) {
+        if (shape == null || supplier == null) {
+            throw new IllegalArgumentException("shape and supplier are required");
         }
+        registry.put(shape, supplier);
+    }
+
+    // same object is returned on each call, only for shapes without any state
+    void registerShared(String shape, Shape instance) {
+        if (instance == null) {
+            throw new IllegalArgumentException("instance is required");
+        }
+        register(shape, () -> instance);
+    }
+
+    /**
+     * registers a shape class by its no-arg constructor
+     * constructor is looked up once here, instead of using reflection on each call
+     */
+    void register(String shape, Class<? extends Shape> type) {
+        MethodHandle constructor;
+        try {
+            constructor = MethodHandles.lookup()
+                    .findConstructor(type, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Shape.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException(type.getName() + " has no accessible no-arg constructor", e);
+        }
+        register(shape, () -> {
+            try {
+                return (Shape) constructor.invokeExact();
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("Could not create " + shape, e);
+            }
+        });
     }
 }
 
@@ -59,4 +121,53 @@ class Square implements Shape {
     public void draw() {
         System.out.println("Square");
     }
-}
\ No newline at end of file
+}
+
+class Triangle implements Shape {
+
+    @Override
+    public void draw() {
+        System.out.println("Triangle");
+    }
+}
+
+/**
+ * Returned for unknown shapes instead of null, draws nothing
+ */
+class NullShape implements Shape {
+    static final NullShape INSTANCE = new NullShape();
+
+    private NullShape() {
+    }
+
+    @Override
+    public void draw() {
+    }
+}
+
+/**
+ * Cost of getting a shape from the factory compared with creating it directly
+ * Usage: java designpatterns.creational.ShapeFactoryBenchmark
+ */
+class ShapeFactoryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        new BenchmarkRunner()
+                .add("new Circle()", () -> Circle::new)
+                .add("shared lookup", () -> {
+                    ShapeFactory factory = new ShapeFactory();
+                    return () -> factory.getShape("Circle");
+                })
+                .add("supplier lookup", () -> {
+                    ShapeFactory factory = new ShapeFactory();
+                    factory.register("NewCircle", Circle::new);
+                    return () -> factory.getShape("NewCircle");
+                })
+                .add("MethodHandle lookup", () -> {
+                    ShapeFactory factory = new ShapeFactory();
+                    factory.register("HandleCircle", Circle.class);
+                    return () -> factory.getShape("HandleCircle");
+                })
+                .run(args);
+    }
+}
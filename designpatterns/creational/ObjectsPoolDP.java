@@ -3,6 +3,26 @@ package designpatterns.creational;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * Used to manage the pool of reusable objects
@@ -38,6 +58,123 @@ public class ObjectsPoolDP {
         }
         dbConnPoolManager.releaseDBConnection(connection);
 
+        /**
+         * Both pool managers follow the same borrow/release contract (DBConnPool),
+         * so the lock-free one can be swapped in and compared against the synchronized one
+         */
+        DBConnPool concurrentPool = new ConcurrentDBConnPoolManager(new DBConnPoolConfig()
+                .initialPoolSize(1)
+                .maxPoolSize(3));
+        connection = null;
+        for (int i = 0; i < 5; i++) {
+            DBConnection dbConnection = concurrentPool.getDBConnection();
+            if(Objects.nonNull(dbConnection)){
+                connection = dbConnection;
+                System.out.println("Fetched db connection="+dbConnection.hashCode());
+            }
+        }
+        concurrentPool.releaseDBConnection(connection);
+
+        /**
+         * Instead of getting null and retrying in a loop, client can wait for a connection
+         * Waiting threads are parked (no cpu is used) and served in FIFO order,
+         * released connection is handed over directly to the longest waiting thread
+         */
+        ConcurrentDBConnPoolManager blockingPool = new ConcurrentDBConnPoolManager(new DBConnPoolConfig()
+                .initialPoolSize(1)
+                .maxPoolSize(1));
+        DBConnection borrowed = blockingPool.getDBConnection();
+        Thread waiter = new Thread(() -> {
+            try {
+                DBConnection dbConnection = blockingPool.getDBConnection(2, TimeUnit.SECONDS);
+                System.out.println("Waiter fetched db connection="+dbConnection.hashCode());
+                blockingPool.releaseDBConnection(dbConnection);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        blockingPool.releaseDBConnection(borrowed);
+        try {
+            waiter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        blockingPool.shutdown();
+
+        /**
+         * Pool can also shrink: connections idle for too long (beyond minIdle) or older than maxLifetime
+         * are evicted by the maintenance thread, which also keeps minIdle connections ready ahead of demand
+         */
+        ConcurrentDBConnPoolManager elasticPool = new ConcurrentDBConnPoolManager(new DBConnPoolConfig()
+                .initialPoolSize(0)
+                .minIdle(1)
+                .maxPoolSize(5)
+                .idleTimeout(200, TimeUnit.MILLISECONDS)
+                .maintenanceInterval(100, TimeUnit.MILLISECONDS));
+        List<DBConnection> spike = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            spike.add(elasticPool.getDBConnection());
+        }
+        spike.forEach(elasticPool::releaseDBConnection);
+        System.out.println("Connections after spike=" + elasticPool.getTotalConnections());
+        try {
+            Thread.sleep(500);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Connections after idle timeout=" + elasticPool.getTotalConnections());
+        elasticPool.shutdown();
+
+        /**
+         * Metrics and leak detection are opt-in, connection never released is reported with its borrow site
+         */
+        HistogramPoolMetrics metrics = new HistogramPoolMetrics();
+        ConcurrentDBConnPoolManager monitoredPool = new ConcurrentDBConnPoolManager(new DBConnPoolConfig()
+                .maxPoolSize(2)
+                .metrics(metrics)
+                .leakDetectionThreshold(100, TimeUnit.MILLISECONDS));
+        monitoredPool.releaseDBConnection(monitoredPool.getDBConnection());
+        DBConnection leaked = monitoredPool.getDBConnection();
+        try {
+            Thread.sleep(200);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("active=" + monitoredPool.getActiveConnections()
+                + ", idle=" + monitoredPool.getIdleConnections()
+                + ", pending=" + monitoredPool.getPendingThreads());
+        System.out.println(metrics);
+        monitoredPool.releaseDBConnection(leaked);
+        monitoredPool.shutdown();
+
+        /**
+         * Asynchronous borrow: no thread is blocked while waiting,
+         * so thousands of requests (or virtual threads) can share a small pool
+         */
+        ConcurrentDBConnPoolManager asyncPool = new ConcurrentDBConnPoolManager(new DBConnPoolConfig()
+                .initialPoolSize(1)
+                .maxPoolSize(1));
+        DBConnection held = asyncPool.getDBConnection();
+        CompletableFuture<Void> asyncBorrow = asyncPool.getDBConnectionAsync(1, TimeUnit.SECONDS)
+                .thenAccept(dbConnection -> {
+                    System.out.println("Async fetched db connection=" + dbConnection.hashCode());
+                    asyncPool.releaseDBConnection(dbConnection);
+                });
+        asyncPool.releaseDBConnection(held);
+        asyncBorrow.join();
+        asyncPool.shutdown();
+
+        /**
+         * Initial connections created in parallel, and validated in background every second
+         */
+        ConcurrentDBConnPoolManager warmPool = new ConcurrentDBConnPoolManager(new DBConnPoolConfig()
+                .initialPoolSize(4)
+                .maxPoolSize(4)
+                .warmUpParallelism(4)
+                .validationInterval(1, TimeUnit.SECONDS));
+        System.out.println("Warmed up connections=" + warmPool.getIdleConnections());
+        warmPool.shutdown();
     }
 }
 
@@ -46,11 +183,26 @@ class DBConnection {
     public static DBConnection getDBConn() {
         return new DBConnection();
     }
+
+    // e.g. connection dropped by the database or by network
+    public boolean isValid() {
+        return true;
+    }
 }
 
 
+/**
+ * Borrow/release contract shared by all the pool managers
+ * getDBConnection() returns null when the pool is exhausted
+ */
+interface DBConnPool {
+    DBConnection getDBConnection();
+
+    void releaseDBConnection(DBConnection dbConnection);
+}
+
 // Resouce Pool Manager
-class DBConnPoolManager {
+class DBConnPoolManager implements DBConnPool {
     /**
      * To keep this thread safe, we will use double-locking-singleton-design-pattern
      * to create the object of this pool manager
@@ -60,6 +212,10 @@ class DBConnPoolManager {
     private List<DBConnection> freeDBConnections = new ArrayList<>();
     private List<DBConnection> inUseDBConnections = new ArrayList<>();
 
+    // using lock instead of synchronized methods
+    // a virtual thread blocked on a synchronized method pins its carrier thread, blocked on a lock it does not
+    private final ReentrantLock lock = new ReentrantLock();
+
     private final static int MAX_POOL_SIZE = 3;
     private final static int INITIAL_POOL_SIZE = 1;
 
@@ -82,28 +238,952 @@ class DBConnPoolManager {
         }
     }
 
-    public synchronized DBConnection getDBConnection() {
-        if (freeDBConnections.isEmpty()) {
-            if (inUseDBConnections.size() < MAX_POOL_SIZE) {
-                DBConnection dbConn = DBConnection.getDBConn();
-                freeDBConnections.add(dbConn);
-                System.out.println("Created new db connection=" + dbConn.hashCode());
+    @Override
+    public DBConnection getDBConnection() {
+        lock.lock();
+        try {
+            if (freeDBConnections.isEmpty()) {
+                if (inUseDBConnections.size() < MAX_POOL_SIZE) {
+                    DBConnection dbConn = DBConnection.getDBConn();
+                    freeDBConnections.add(dbConn);
+                    System.out.println("Created new db connection=" + dbConn.hashCode());
 
-            } else {
-                System.out.println("Max limit reached! Cannot create new db connection.");
-                return null;
+                } else {
+                    System.out.println("Max limit reached! Cannot create new db connection.");
+                    return null;
+                }
             }
+            DBConnection dbConnection = freeDBConnections.remove(0);
+            inUseDBConnections.add(dbConnection);
+            return dbConnection;
+        } finally {
+            lock.unlock();
         }
-        DBConnection dbConnection = freeDBConnections.remove(0);
-        inUseDBConnections.add(dbConnection);
-        return dbConnection;
     }
 
-    public synchronized void releaseDBConnection(DBConnection dbConnection) {
+    @Override
+    public void releaseDBConnection(DBConnection dbConnection) {
         if (Objects.nonNull(dbConnection)) {
-            inUseDBConnections.remove(dbConnection);
-            freeDBConnections.add(dbConnection);
+            lock.lock();
+            try {
+                inUseDBConnections.remove(dbConnection);
+                freeDBConnections.add(dbConnection);
+            } finally {
+                lock.unlock();
+            }
             System.out.println("Release db connnection object="+dbConnection.hashCode());
         }
     }
-}
\ No newline at end of file
+}
+
+/**
+ * Settings of the pool, each setter returns the config itself so that it can be built step-by-step
+ */
+class DBConnPoolConfig {
+    int initialPoolSize = 1;
+    int maxPoolSize = 3;
+    // number of idle connections kept ready ahead of demand
+    int minIdle = 0;
+    // 0 means never evicted for being idle / too old
+    long idleTimeoutMillis = TimeUnit.MINUTES.toMillis(10);
+    long maxLifetimeMillis = TimeUnit.MINUTES.toMillis(30);
+    // how often the background maintenance task runs, 0 disables it
+    long maintenanceIntervalMillis = TimeUnit.SECONDS.toMillis(30);
+    // connection held longer than this is reported as a possible leak, 0 disables leak detection
+    long leakDetectionThresholdMillis = 0;
+    PoolMetrics metrics = NoOpPoolMetrics.INSTANCE;
+    // completes the futures returned by getDBConnectionAsync()
+    Executor asyncExecutor = ForkJoinPool.commonPool();
+    // number of threads creating the initial connections, 1 creates them one by one
+    int warmUpParallelism = 1;
+    // how often idle connections are validated in background, 0 disables validation
+    long validationIntervalMillis = 0;
+
+    public DBConnPoolConfig initialPoolSize(int initialPoolSize) {
+        this.initialPoolSize = initialPoolSize;
+        return this;
+    }
+
+    public DBConnPoolConfig maxPoolSize(int maxPoolSize) {
+        this.maxPoolSize = maxPoolSize;
+        return this;
+    }
+
+    public DBConnPoolConfig minIdle(int minIdle) {
+        this.minIdle = minIdle;
+        return this;
+    }
+
+    public DBConnPoolConfig idleTimeout(long idleTimeout, TimeUnit unit) {
+        this.idleTimeoutMillis = unit.toMillis(idleTimeout);
+        return this;
+    }
+
+    public DBConnPoolConfig maxLifetime(long maxLifetime, TimeUnit unit) {
+        this.maxLifetimeMillis = unit.toMillis(maxLifetime);
+        return this;
+    }
+
+    public DBConnPoolConfig maintenanceInterval(long maintenanceInterval, TimeUnit unit) {
+        this.maintenanceIntervalMillis = unit.toMillis(maintenanceInterval);
+        return this;
+    }
+
+    public DBConnPoolConfig leakDetectionThreshold(long leakDetectionThreshold, TimeUnit unit) {
+        this.leakDetectionThresholdMillis = unit.toMillis(leakDetectionThreshold);
+        return this;
+    }
+
+    public DBConnPoolConfig metrics(PoolMetrics metrics) {
+        this.metrics = Objects.requireNonNull(metrics);
+        return this;
+    }
+
+    public DBConnPoolConfig asyncExecutor(Executor asyncExecutor) {
+        this.asyncExecutor = Objects.requireNonNull(asyncExecutor);
+        return this;
+    }
+
+    public DBConnPoolConfig warmUpParallelism(int warmUpParallelism) {
+        this.warmUpParallelism = warmUpParallelism;
+        return this;
+    }
+
+    public DBConnPoolConfig validationInterval(long validationInterval, TimeUnit unit) {
+        this.validationIntervalMillis = unit.toMillis(validationInterval);
+        return this;
+    }
+
+    void validate() {
+        if (maxPoolSize < 1) {
+            throw new IllegalArgumentException("maxPoolSize must be at least 1");
+        }
+        if (initialPoolSize < 0 || initialPoolSize > maxPoolSize) {
+            throw new IllegalArgumentException("initialPoolSize must be between 0 and maxPoolSize");
+        }
+        if (minIdle < 0 || minIdle > maxPoolSize) {
+            throw new IllegalArgumentException("minIdle must be between 0 and maxPoolSize");
+        }
+        if (idleTimeoutMillis < 0 || maxLifetimeMillis < 0 || maintenanceIntervalMillis < 0
+                || leakDetectionThresholdMillis < 0 || validationIntervalMillis < 0) {
+            throw new IllegalArgumentException("timeouts and intervals cannot be negative");
+        }
+        if (warmUpParallelism < 1) {
+            throw new IllegalArgumentException("warmUpParallelism must be at least 1");
+        }
+    }
+}
+
+/**
+ * Lock-free pool manager
+ * Same contract as DBConnPoolManager but no thread ever waits on a monitor:
+ * 1. free connections are kept in a ConcurrentLinkedDeque -> O(1) borrow and release
+ * 2. each connection carries its own state (FREE / IN_USE), ownership is taken with compare-and-set
+ *    hence a connection can never be given to two threads and releasing twice is ignored
+ * 3. pool size is reserved with compare-and-set, so MAX_POOL_SIZE can never be exceeded
+ *    even if many threads try to create a connection at the same time
+ * 4. threads waiting for a connection are parked in a FIFO queue, release hands the connection
+ *    directly to the oldest waiter instead of putting it back to the free list
+ * 5. every thread remembers the connection it released last, and tries to take the same one back
+ *    on its next borrow without touching the shared free list;
+ *    the connection still stays in the shared free list, so other threads can steal it when needed
+ * 6. a background maintenance thread evicts connections which are idle for too long or are too old,
+ *    and creates new ones ahead of demand (minIdle / waiting threads), so request threads do not pay creation cost
+ * 7. wait time, created/evicted connections and timeouts are reported to PoolMetrics (no-op unless configured),
+ *    and a connection held longer than leakDetectionThreshold is reported along with the place it was borrowed from
+ * 8. nothing here blocks on a monitor, waiting threads are parked with LockSupport, hence virtual threads
+ *    never pin their carrier; getDBConnectionAsync() does not block any thread at all
+ * 9. initial connections can be created in parallel (warmUpParallelism) to cut the startup time,
+ *    and idle connections are validated in background, broken ones are replaced before a request gets them
+ */
+class ConcurrentDBConnPoolManager implements DBConnPool {
+
+    private final ConcurrentLinkedDeque<PooledDBConnection> freeDBConnections = new ConcurrentLinkedDeque<>();
+    private final ConcurrentHashMap<DBConnection, PooledDBConnection> allDBConnections = new ConcurrentHashMap<>();
+    private final ThreadLocal<PooledDBConnection> lastReleasedDBConnection = new ThreadLocal<>();
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean fillPending = new AtomicBoolean();
+    private final ScheduledExecutorService maintenanceExecutor;
+    private final Executor asyncExecutor;
+
+    // can be changed while the pool is running
+    private volatile int maxPoolSize;
+    private volatile int minIdle;
+    private final long idleTimeoutNanos;
+    private final long maxLifetimeNanos;
+    private final long leakDetectionThresholdMillis;
+    private final PoolMetrics metrics;
+    // checked before reading the clock, so disabled metrics cost nothing on borrow
+    private final boolean metricsEnabled;
+
+    public ConcurrentDBConnPoolManager(DBConnPoolConfig config) {
+        config.validate();
+        this.maxPoolSize = config.maxPoolSize;
+        this.minIdle = config.minIdle;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.idleTimeoutMillis);
+        this.maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(config.maxLifetimeMillis);
+        this.leakDetectionThresholdMillis = config.leakDetectionThresholdMillis;
+        this.metrics = config.metrics;
+        this.metricsEnabled = !(config.metrics instanceof NoOpPoolMetrics);
+        this.asyncExecutor = config.asyncExecutor;
+        for (DBConnection dbConnection : warmUp(config.initialPoolSize, config.warmUpParallelism)) {
+            PooledDBConnection pooledDBConnection = new PooledDBConnection(dbConnection);
+            allDBConnections.put(pooledDBConnection.dbConnection, pooledDBConnection);
+            metrics.recordCreated();
+            offer(pooledDBConnection);
+        }
+        totalConnections.set(config.initialPoolSize);
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "db-conn-pool-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // cancelled leak reports and borrow timeouts are dropped from the queue right away
+        executor.setRemoveOnCancelPolicy(true);
+        maintenanceExecutor = executor;
+        if (config.maintenanceIntervalMillis > 0) {
+            maintenanceExecutor.scheduleWithFixedDelay(this::maintain,
+                    config.maintenanceIntervalMillis, config.maintenanceIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        if (config.validationIntervalMillis > 0) {
+            maintenanceExecutor.scheduleWithFixedDelay(this::validateIdleConnections,
+                    config.validationIntervalMillis, config.validationIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        requestFill();
+    }
+
+    private static List<DBConnection> warmUp(int initialPoolSize, int parallelism) {
+        List<DBConnection> dbConnections = new ArrayList<>(initialPoolSize);
+        if (parallelism == 1 || initialPoolSize <= 1) {
+            for (int i = 0; i < initialPoolSize; i++) {
+                dbConnections.add(DBConnection.getDBConn());
+            }
+            return dbConnections;
+        }
+        // startup time becomes the time of slowest connection instead of sum of all of them
+        ExecutorService warmUpExecutor = Executors.newFixedThreadPool(Math.min(parallelism, initialPoolSize));
+        try {
+            List<CompletableFuture<DBConnection>> futures = new ArrayList<>(initialPoolSize);
+            for (int i = 0; i < initialPoolSize; i++) {
+                futures.add(CompletableFuture.supplyAsync(DBConnection::getDBConn, warmUpExecutor));
+            }
+            for (CompletableFuture<DBConnection> future : futures) {
+                dbConnections.add(future.join());
+            }
+            return dbConnections;
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        } finally {
+            warmUpExecutor.shutdown();
+        }
+    }
+
+    @Override
+    public DBConnection getDBConnection() {
+        long startNanos = metricsEnabled ? System.nanoTime() : 0L;
+        PooledDBConnection pooledDBConnection = borrowIdleDBConnection();
+        if (pooledDBConnection == null) {
+            // caller cannot wait, hence the connection is created on the calling thread
+            pooledDBConnection = tryCreateDBConnection();
+            if (pooledDBConnection == null) {
+                return null;
+            }
+            // pool ran out of idle connections, create the next ones in background
+            requestFill();
+        }
+        return borrowed(pooledDBConnection, startNanos);
+    }
+
+    /**
+     * Waits up to the given timeout for a connection
+     * returns null if no connection became available before the deadline
+     */
+    public DBConnection getDBConnection(long timeout, TimeUnit unit) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        long startNanos = metricsEnabled ? System.nanoTime() : 0L;
+        // do not overtake threads which are already waiting
+        if (waiters.isEmpty()) {
+            PooledDBConnection pooledDBConnection = borrowIdleDBConnection();
+            if (pooledDBConnection != null) {
+                return borrowed(pooledDBConnection, startNanos);
+            }
+        }
+
+        Waiter waiter = new Waiter(Thread.currentThread());
+        PooledDBConnection pooledDBConnection = enqueue(waiter);
+        if (pooledDBConnection != null) {
+            return borrowed(pooledDBConnection, startNanos);
+        }
+        if (waiter.isFulfilled()) {
+            return borrowed(waiter.pooledDBConnection, startNanos);
+        }
+        // new connection (if pool is not full yet) is created by the maintenance thread and handed over to us
+        requestFill();
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!waiter.isFulfilled()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            LockSupport.parkNanos(this, remaining);
+            if (Thread.interrupted()) {
+                if (waiter.cancel()) {
+                    waiters.remove(waiter);
+                    throw new InterruptedException();
+                }
+                // connection was already handed over, return it and keep the interrupt status
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (waiter.cancel()) {
+            waiters.remove(waiter);
+            metrics.recordTimeout();
+            return null;
+        }
+        return borrowed(waiter.pooledDBConnection, startNanos);
+    }
+
+    /**
+     * Same as getDBConnection(timeout, unit) but no thread waits for the connection,
+     * returned future is completed (on asyncExecutor) once a connection is handed over,
+     * or completed with null once the timeout passes
+     * cancelling the future gives up the place in the queue
+     */
+    public CompletableFuture<DBConnection> getDBConnectionAsync(long timeout, TimeUnit unit) {
+        long startNanos = metricsEnabled ? System.nanoTime() : 0L;
+        // do not overtake threads which are already waiting
+        if (waiters.isEmpty()) {
+            PooledDBConnection pooledDBConnection = borrowIdleDBConnection();
+            if (pooledDBConnection != null) {
+                return CompletableFuture.completedFuture(borrowed(pooledDBConnection, startNanos));
+            }
+        }
+
+        CompletableFuture<DBConnection> future = new CompletableFuture<>();
+        Waiter waiter = new Waiter(pooledDBConnection -> completeAsync(future, pooledDBConnection, startNanos));
+        PooledDBConnection pooledDBConnection = enqueue(waiter);
+        if (pooledDBConnection != null) {
+            future.complete(borrowed(pooledDBConnection, startNanos));
+            return future;
+        }
+        // future is completed with the connection handed over meanwhile
+        if (waiter.isFulfilled()) {
+            return future;
+        }
+        requestFill();
+
+        Runnable timeoutTask = () -> {
+            if (waiter.cancel()) {
+                waiters.remove(waiter);
+                metrics.recordTimeout();
+                // like a hand-off, borrower's continuation must not run on the maintenance thread
+                runAsync(() -> future.complete(null));
+            }
+        };
+        try {
+            waiter.timeoutTask = maintenanceExecutor.schedule(timeoutTask, timeout, unit);
+        } catch (RejectedExecutionException e) {
+            // pool is shut down
+            timeoutTask.run();
+        }
+        future.whenComplete((dbConnection, throwable) -> {
+            ScheduledFuture<?> scheduledTimeout = waiter.timeoutTask;
+            if (scheduledTimeout != null) {
+                scheduledTimeout.cancel(false);
+            }
+            if (future.isCancelled() && waiter.cancel()) {
+                waiters.remove(waiter);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * queues the waiter, then checks once more for an idle connection, which might have been released
+     * before the waiter got into the queue
+     * returns that connection if the waiter could be taken out of the queue again,
+     * otherwise null: waiter is still queued, or it was handed a connection meanwhile (see isFulfilled())
+     */
+    private PooledDBConnection enqueue(Waiter waiter) {
+        waiters.offer(waiter);
+        PooledDBConnection pooledDBConnection = borrowIdleDBConnection();
+        if (pooledDBConnection == null) {
+            return null;
+        }
+        if (waiter.cancel()) {
+            waiters.remove(waiter);
+            return pooledDBConnection;
+        }
+        // someone handed the waiter a connection meanwhile, it keeps that one and the other is given back
+        releaseDBConnection(pooledDBConnection.dbConnection);
+        return null;
+    }
+
+    // continuation of the borrower must not run on the releasing thread, it may release again and recurse
+    private void completeAsync(CompletableFuture<DBConnection> future, PooledDBConnection pooledDBConnection, long startNanos) {
+        runAsync(() -> {
+            DBConnection dbConnection = borrowed(pooledDBConnection, startNanos);
+            // borrower cancelled the future meanwhile
+            if (!future.complete(dbConnection)) {
+                releaseDBConnection(dbConnection);
+            }
+        });
+    }
+
+    private void runAsync(Runnable completion) {
+        try {
+            asyncExecutor.execute(completion);
+        } catch (RejectedExecutionException e) {
+            completion.run();
+        }
+    }
+
+    @Override
+    public void releaseDBConnection(DBConnection dbConnection) {
+        if (Objects.isNull(dbConnection)) {
+            return;
+        }
+        PooledDBConnection pooledDBConnection = allDBConnections.get(dbConnection);
+        if (pooledDBConnection == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        // connection which outlived maxLifetime is not given to anyone else
+        int nextState = isExpired(pooledDBConnection, now) ? PooledDBConnection.REMOVED : PooledDBConnection.FREE;
+        // read before giving up ownership, afterwards the next borrower may replace it
+        ScheduledFuture<?> leakTask = pooledDBConnection.leakTask;
+        // connection which is not borrowed from this pool (or released twice) is ignored
+        if (!pooledDBConnection.compareAndSetState(PooledDBConnection.IN_USE, nextState)) {
+            return;
+        }
+        if (leakTask != null) {
+            leakTask.cancel(false);
+        }
+        if (nextState == PooledDBConnection.REMOVED) {
+            removeDBConnection(pooledDBConnection);
+            requestFill();
+            return;
+        }
+        pooledDBConnection.lastReleasedAt = now;
+        lastReleasedDBConnection.set(pooledDBConnection);
+        offer(pooledDBConnection);
+    }
+
+    public int getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    // following gauges walk over the connections, they are meant for monitoring and not for the request path
+    public int getActiveConnections() {
+        return countConnections(PooledDBConnection.IN_USE);
+    }
+
+    public int getIdleConnections() {
+        return countConnections(PooledDBConnection.FREE);
+    }
+
+    public int getPendingThreads() {
+        return waiters.size();
+    }
+
+    public PoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMaxPoolSize(int maxPoolSize) {
+        if (maxPoolSize < 1 || maxPoolSize < minIdle) {
+            throw new IllegalArgumentException("maxPoolSize must be at least 1 and not less than minIdle");
+        }
+        // shrinking is done by the maintenance task as connections become idle
+        this.maxPoolSize = maxPoolSize;
+        requestFill();
+    }
+
+    public void setMinIdle(int minIdle) {
+        if (minIdle < 0 || minIdle > maxPoolSize) {
+            throw new IllegalArgumentException("minIdle must be between 0 and maxPoolSize");
+        }
+        this.minIdle = minIdle;
+        requestFill();
+    }
+
+    /**
+     * Stops the maintenance thread; connections already borrowed can still be released
+     */
+    public void shutdown() {
+        maintenanceExecutor.shutdownNow();
+    }
+
+    // makes a FREE connection visible to other threads, or hands it to the oldest waiter
+    private void offer(PooledDBConnection pooledDBConnection) {
+        while (true) {
+            // connection is kept in the free list at most once, even if its owner keeps re-borrowing it
+            if (pooledDBConnection.queued.compareAndSet(false, true)) {
+                freeDBConnections.offerFirst(pooledDBConnection);
+            }
+            // a thread might have started waiting before or while the connection was being released
+            if (waiters.isEmpty() || !pooledDBConnection.compareAndSetState(PooledDBConnection.FREE, PooledDBConnection.IN_USE)) {
+                return;
+            }
+            if (handOff(pooledDBConnection)) {
+                return;
+            }
+            // every waiter already timed out
+            pooledDBConnection.state.set(PooledDBConnection.FREE);
+        }
+    }
+
+    private boolean handOff(PooledDBConnection pooledDBConnection) {
+        Waiter waiter;
+        while ((waiter = waiters.poll()) != null) {
+            if (waiter.fulfil(pooledDBConnection)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // single exit point of every successful borrow
+    private DBConnection borrowed(PooledDBConnection pooledDBConnection, long startNanos) {
+        if (metricsEnabled) {
+            metrics.recordAcquire(System.nanoTime() - startNanos);
+        }
+        if (leakDetectionThresholdMillis > 0) {
+            // stack trace has to be captured now, borrow site is gone by the time the threshold is crossed
+            Exception borrowSite = new Exception("Apparent connection leak detected, connection=" + pooledDBConnection.dbConnection.hashCode()
+                    + " borrowed by thread=" + Thread.currentThread().getName());
+            try {
+                pooledDBConnection.leakTask = maintenanceExecutor.schedule(() -> {
+                    metrics.recordLeak();
+                    borrowSite.printStackTrace(System.out);
+                }, leakDetectionThresholdMillis, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                // pool is shut down
+                pooledDBConnection.leakTask = null;
+            }
+        }
+        return pooledDBConnection.dbConnection;
+    }
+
+    private PooledDBConnection borrowIdleDBConnection() {
+        // fast path: connection released last by this thread, no shared state is written if it is still free
+        PooledDBConnection pooledDBConnection = lastReleasedDBConnection.get();
+        if (pooledDBConnection != null && pooledDBConnection.compareAndSetState(PooledDBConnection.FREE, PooledDBConnection.IN_USE)) {
+            return pooledDBConnection;
+        }
+        return pollFreeDBConnection();
+    }
+
+    private PooledDBConnection pollFreeDBConnection() {
+        // most recently released connection is picked first (LIFO), it is the most likely one to be still warm
+        PooledDBConnection pooledDBConnection;
+        while ((pooledDBConnection = freeDBConnections.pollFirst()) != null) {
+            pooledDBConnection.queued.set(false);
+            // entries re-borrowed by their last owner (or evicted) are skipped, owner puts them back on release
+            if (pooledDBConnection.compareAndSetState(PooledDBConnection.FREE, PooledDBConnection.IN_USE)) {
+                return pooledDBConnection;
+            }
+        }
+        return null;
+    }
+
+    private PooledDBConnection tryCreateDBConnection() {
+        // reserve a slot first and create the connection only if reservation succeeded
+        int total;
+        do {
+            total = totalConnections.get();
+            if (total >= maxPoolSize) {
+                return null;
+            }
+        } while (!totalConnections.compareAndSet(total, total + 1));
+
+        try {
+            PooledDBConnection pooledDBConnection = new PooledDBConnection(DBConnection.getDBConn());
+            pooledDBConnection.state.set(PooledDBConnection.IN_USE);
+            allDBConnections.put(pooledDBConnection.dbConnection, pooledDBConnection);
+            metrics.recordCreated();
+            return pooledDBConnection;
+        } catch (RuntimeException e) {
+            totalConnections.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private boolean isExpired(PooledDBConnection pooledDBConnection, long now) {
+        return maxLifetimeNanos > 0 && now - pooledDBConnection.createdAt > maxLifetimeNanos;
+    }
+
+    // caller must have moved the connection to REMOVED state
+    private void removeDBConnection(PooledDBConnection pooledDBConnection) {
+        // unlinked right away, borrowers taking the thread-affine fast path might never poll past it
+        if (pooledDBConnection.queued.compareAndSet(true, false)) {
+            freeDBConnections.remove(pooledDBConnection);
+        }
+        allDBConnections.remove(pooledDBConnection.dbConnection);
+        totalConnections.decrementAndGet();
+        metrics.recordEvicted();
+    }
+
+    private void requestFill() {
+        if (fillPending.compareAndSet(false, true)) {
+            try {
+                maintenanceExecutor.execute(() -> {
+                    try {
+                        fillPool();
+                    } finally {
+                        fillPending.set(false);
+                    }
+                    // demand might have changed while we were filling
+                    if (needsMoreConnections(countIdleConnections())) {
+                        requestFill();
+                    }
+                });
+            } catch (RuntimeException e) {
+                // pool is shut down
+                fillPending.set(false);
+            }
+        }
+    }
+
+    private boolean needsMoreConnections(int idleConnections) {
+        return totalConnections.get() < maxPoolSize && (idleConnections < minIdle || !waiters.isEmpty());
+    }
+
+    // runs on maintenance thread
+    private void fillPool() {
+        int idleConnections = countIdleConnections();
+        while (needsMoreConnections(idleConnections)) {
+            PooledDBConnection pooledDBConnection = tryCreateDBConnection();
+            if (pooledDBConnection == null) {
+                return;
+            }
+            pooledDBConnection.state.set(PooledDBConnection.FREE);
+            offer(pooledDBConnection);
+            if (pooledDBConnection.state.get() == PooledDBConnection.FREE) {
+                idleConnections++;
+            }
+        }
+    }
+
+    // runs on maintenance thread
+    private void maintain() {
+        long now = System.nanoTime();
+        int idleConnections = countIdleConnections();
+        for (PooledDBConnection pooledDBConnection : allDBConnections.values()) {
+            if (pooledDBConnection.state.get() != PooledDBConnection.FREE) {
+                continue;
+            }
+            boolean evict = isExpired(pooledDBConnection, now)
+                    || totalConnections.get() > maxPoolSize
+                    || (idleTimeoutNanos > 0 && idleConnections > minIdle
+                        && now - pooledDBConnection.lastReleasedAt > idleTimeoutNanos);
+            // connection might get borrowed in between, in that case compare-and-set fails and it is kept
+            if (evict && pooledDBConnection.compareAndSetState(PooledDBConnection.FREE, PooledDBConnection.REMOVED)) {
+                removeDBConnection(pooledDBConnection);
+                idleConnections--;
+            }
+        }
+        // an entry being queued by its owner while it got removed is left behind, cleaned up here
+        freeDBConnections.removeIf(pooledDBConnection -> pooledDBConnection.state.get() == PooledDBConnection.REMOVED);
+        fillPool();
+    }
+
+    // runs on maintenance thread, so request threads never pay for validation
+    private void validateIdleConnections() {
+        int removed = 0;
+        for (PooledDBConnection pooledDBConnection : allDBConnections.values()) {
+            // reserved so that nobody borrows the connection while it is being validated
+            if (!pooledDBConnection.compareAndSetState(PooledDBConnection.FREE, PooledDBConnection.RESERVED)) {
+                continue;
+            }
+            boolean valid;
+            try {
+                valid = pooledDBConnection.dbConnection.isValid();
+            } catch (RuntimeException e) {
+                valid = false;
+            }
+            if (valid) {
+                pooledDBConnection.state.set(PooledDBConnection.FREE);
+                offer(pooledDBConnection);
+            } else {
+                pooledDBConnection.state.set(PooledDBConnection.REMOVED);
+                removeDBConnection(pooledDBConnection);
+                removed++;
+            }
+        }
+        // replace broken connections one for one, so that the next borrower does not pay for creating one
+        for (int i = 0; i < removed; i++) {
+            PooledDBConnection replacement = tryCreateDBConnection();
+            if (replacement == null) {
+                // pool is full again
+                break;
+            }
+            replacement.state.set(PooledDBConnection.FREE);
+            offer(replacement);
+        }
+        if (removed > 0) {
+            fillPool();
+        }
+    }
+
+    private int countIdleConnections() {
+        return countConnections(PooledDBConnection.FREE);
+    }
+
+    private int countConnections(int state) {
+        int connections = 0;
+        for (PooledDBConnection pooledDBConnection : allDBConnections.values()) {
+            if (pooledDBConnection.state.get() == state) {
+                connections++;
+            }
+        }
+        return connections;
+    }
+}
+
+/**
+ * Receives events from the pool manager
+ */
+interface PoolMetrics {
+    void recordAcquire(long waitNanos);
+
+    void recordTimeout();
+
+    void recordCreated();
+
+    void recordEvicted();
+
+    void recordLeak();
+}
+
+/**
+ * Null object used when metrics are disabled, pool does not even read the clock in that case
+ */
+class NoOpPoolMetrics implements PoolMetrics {
+    static final NoOpPoolMetrics INSTANCE = new NoOpPoolMetrics();
+
+    private NoOpPoolMetrics() {
+    }
+
+    @Override
+    public void recordAcquire(long waitNanos) {
+    }
+
+    @Override
+    public void recordTimeout() {
+    }
+
+    @Override
+    public void recordCreated() {
+    }
+
+    @Override
+    public void recordEvicted() {
+    }
+
+    @Override
+    public void recordLeak() {
+    }
+}
+
+/**
+ * Counts events with LongAdder (striped counters), so threads recording at same time do not contend
+ * Wait times are kept in a histogram with power-of-two buckets: bucket i counts waits in [2^i, 2^(i+1)) nanos
+ */
+class HistogramPoolMetrics implements PoolMetrics {
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] acquireBuckets = new LongAdder[BUCKETS];
+    private final LongAdder acquireCount = new LongAdder();
+    private final LongAdder acquireNanos = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    HistogramPoolMetrics() {
+        for (int i = 0; i < BUCKETS; i++) {
+            acquireBuckets[i] = new LongAdder();
+        }
+    }
+
+    @Override
+    public void recordAcquire(long waitNanos) {
+        long nanos = Math.max(waitNanos, 1);
+        acquireBuckets[63 - Long.numberOfLeadingZeros(nanos)].increment();
+        acquireCount.increment();
+        acquireNanos.add(nanos);
+    }
+
+    @Override
+    public void recordTimeout() {
+        timeouts.increment();
+    }
+
+    @Override
+    public void recordCreated() {
+        created.increment();
+    }
+
+    @Override
+    public void recordEvicted() {
+        evicted.increment();
+    }
+
+    @Override
+    public void recordLeak() {
+        leaks.increment();
+    }
+
+    /**
+     * Upper bound (in nanos) of the bucket in which given percentile (0-100) of the waits falls
+     */
+    public long getAcquirePercentileNanos(double percentile) {
+        long[] histogram = getAcquireHistogram();
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= rank && histogram[i] > 0) {
+                return i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+            }
+        }
+        return 0;
+    }
+
+    public long[] getAcquireHistogram() {
+        long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = acquireBuckets[i].sum();
+        }
+        return histogram;
+    }
+
+    public long getAcquireCount() {
+        return acquireCount.sum();
+    }
+
+    public long getAverageAcquireNanos() {
+        long count = acquireCount.sum();
+        return count == 0 ? 0 : acquireNanos.sum() / count;
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long getCreated() {
+        return created.sum();
+    }
+
+    public long getEvicted() {
+        return evicted.sum();
+    }
+
+    public long getLeaks() {
+        return leaks.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "acquired=" + getAcquireCount()
+                + ", avgWaitNanos=" + getAverageAcquireNanos()
+                + ", p99WaitNanos<=" + getAcquirePercentileNanos(99)
+                + ", timeouts=" + getTimeouts()
+                + ", created=" + getCreated()
+                + ", evicted=" + getEvicted()
+                + ", leaks=" + getLeaks();
+    }
+}
+
+/**
+ * Connection along with its bookkeeping inside ConcurrentDBConnPoolManager
+ */
+class PooledDBConnection {
+    static final int FREE = 0;
+    static final int IN_USE = 1;
+    // evicted from the pool, never becomes FREE again
+    static final int REMOVED = 2;
+    // taken by maintenance thread for validation
+    static final int RESERVED = 3;
+
+    final DBConnection dbConnection;
+    final AtomicInteger state = new AtomicInteger(FREE);
+    // true while the connection is present in the shared free list
+    final AtomicBoolean queued = new AtomicBoolean();
+    final long createdAt = System.nanoTime();
+    volatile long lastReleasedAt = createdAt;
+    // pending leak report of the current borrow, cancelled on release
+    volatile ScheduledFuture<?> leakTask;
+
+    PooledDBConnection(DBConnection dbConnection) {
+        this.dbConnection = dbConnection;
+    }
+
+    boolean compareAndSetState(int expect, int update) {
+        return state.compareAndSet(expect, update);
+    }
+}
+
+/**
+ * Thread (or asynchronous borrower) waiting in the pool for a connection
+ * state moves only once: WAITING -> FULFILLED (by releasing thread) or WAITING -> CANCELLED (by waiting thread)
+ */
+class Waiter {
+    private static final int WAITING = 0;
+    private static final int FULFILLED = 1;
+    private static final int CANCELLED = 2;
+
+    private final Thread thread;
+    // called instead of unparking a thread, for asynchronous borrowers
+    private final Consumer<PooledDBConnection> callback;
+    private final AtomicInteger state = new AtomicInteger(WAITING);
+    // written before state becomes FULFILLED, hence visible to the waiting thread once it sees FULFILLED
+    PooledDBConnection pooledDBConnection;
+    volatile ScheduledFuture<?> timeoutTask;
+
+    Waiter(Thread thread) {
+        this.thread = thread;
+        this.callback = null;
+    }
+
+    Waiter(Consumer<PooledDBConnection> callback) {
+        this.thread = null;
+        this.callback = callback;
+    }
+
+    boolean fulfil(PooledDBConnection pooledDBConnection) {
+        this.pooledDBConnection = pooledDBConnection;
+        if (state.compareAndSet(WAITING, FULFILLED)) {
+            if (callback != null) {
+                callback.accept(pooledDBConnection);
+            } else {
+                LockSupport.unpark(thread);
+            }
+            return true;
+        }
+        this.pooledDBConnection = null;
+        return false;
+    }
+
+    boolean cancel() {
+        return state.compareAndSet(WAITING, CANCELLED);
+    }
+
+    boolean isFulfilled() {
+        return state.get() == FULFILLED;
+    }
+}
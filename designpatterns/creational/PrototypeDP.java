@@ -1,6 +1,13 @@
 package designpatterns.creational;
 
+import designpatterns.benchmark.BenchmarkRunner;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Useful to create copy or clone of the existing object
@@ -18,7 +25,7 @@ public class PrototypeDP {
          * hence the cloning is the responsibility of that particular entity class
          */
 
-        Address address = new Address();
+        Address address = new Address("Mumbai");
         StudentClazz s1 = new StudentClazz(123, "abc", address);
         StudentClazz s2 = (StudentClazz) s1.clone();
 
@@ -27,15 +34,33 @@ public class PrototypeDP {
         System.out.println(s1 == s2);
 
         /**
-         * this type of cloning creates shallow copy of object
-         * because embedded objects within Student class will not be cloned
-         * e.g.
-         * Address class object in student will not be cloned
+         * shallow copy would share embedded objects, e.g. Address, so changing address of one student
+         * would change it for the other student as well
+         * deep copy clones embedded objects too, but copying whole object graph on every clone is expensive
          *
-         * To make deep copy, we can have dedicated clone() method implementation for embedded classes
+         * hence embedded objects are shared copy-on-write:
+         * both students share the same Address until one of them changes it,
+         * only then Address is cloned for the student changing it
          */
         // both reference to same object
-        System.out.println(s1.getAddress() == s2.getAddress());
+        System.out.println(s1.sharesAddressWith(s2));
+
+        // getAddress() is read only (no setter), changes go through getAddressForUpdate()
+        System.out.println(s2.getAddress().getCity());
+        s2.getAddressForUpdate().setCity("Pune");
+        // now s2 has its own copy, s1 is not affected
+        System.out.println(s1.sharesAddressWith(s2));
+        System.out.println(s1);
+        System.out.println(s2);
+
+        /**
+         * Prototype registry: pre-built objects are registered once by name,
+         * and new objects are stamped out from them (one by one or many at once)
+         */
+        PrototypeRegistry registry = new PrototypeRegistry();
+        registry.register("mumbai-student", new StudentClazz(0, "new-admission", new Address("Mumbai")));
+        StudentClazz[] batch = registry.cloneInto("mumbai-student", new StudentClazz[3]);
+        System.out.println(Arrays.toString(batch));
     }
 }
 
@@ -51,21 +76,42 @@ class StudentClazz implements Prototype {
 
     private int id;
     private String name;
-    private Address address;
+    private CopyOnWrite<Address> address;
+    // created on first getAddress(), so that cloning does not create it
+    private ReadOnlyAddress readOnlyAddress;
 
+    // address is copied: caller keeps its reference and might change it, or pass it to other students
     public StudentClazz(int id, String name, Address address) {
+        this(id, name, new CopyOnWrite<>(address == null ? null : (Address) address.clone()));
+    }
+
+    private StudentClazz(int id, String name, CopyOnWrite<Address> address) {
         this.id = id;
         this.name = name;
         this.address = address;
     }
 
+    // deep copy, but address is actually copied only when one of the students changes it
     @Override
     public Prototype clone() {
-        return new StudentClazz(this.id, this.name, this.address);
+        return new StudentClazz(this.id, this.name, this.address.share());
+    }
+
+    // read only view, as the address might be shared with other clones; use getAddressForUpdate() to change it
+    public ReadOnlyAddress getAddress() {
+        if (readOnlyAddress == null) {
+            readOnlyAddress = new ReadOnlyAddress(this.address);
+        }
+        return readOnlyAddress;
     }
 
-    public Address getAddress() {
-        return this.address;
+    public Address getAddressForUpdate() {
+        return this.address.getForWrite();
+    }
+
+    // true while both students share the same Address object (neither has changed it yet)
+    boolean sharesAddressWith(StudentClazz other) {
+        return this.address.get() == other.address.get();
     }
 
     @Override
@@ -73,11 +119,190 @@ class StudentClazz implements Prototype {
         return new StringJoiner(", ", StudentClazz.class.getSimpleName() + "[", "]")
                 .add("id=" + id)
                 .add("name='" + name + "'")
-                .add("address=" + address)
+                .add("address=" + address.get())
                 .toString();
     }
 }
 
-class Address {
+class Address implements Prototype {
+
+    private String city;
+
+    public Address() {
+    }
+
+    public Address(String city) {
+        this.city = city;
+    }
+
+    public String getCity() {
+        return city;
+    }
+
+    public void setCity(String city) {
+        this.city = city;
+    }
+
+    @Override
+    public Prototype clone() {
+        return new Address(this.city);
+    }
+
+    @Override
+    public String toString() {
+        return new StringJoiner(", ", Address.class.getSimpleName() + "[", "]")
+                .add("city='" + city + "'")
+                .toString();
+    }
+}
+
+/**
+ * Read only view of the Address of a student
+ * it has no setters and can not be cast to Address, hence a shared Address can not be changed through it;
+ * it always shows the current Address of the student, also after getAddressForUpdate() copied it
+ */
+class ReadOnlyAddress {
+    private final CopyOnWrite<Address> address;
+
+    ReadOnlyAddress(CopyOnWrite<Address> address) {
+        this.address = address;
+    }
+
+    public String getCity() {
+        return address.get().getCity();
+    }
+
+    @Override
+    public String toString() {
+        return address.get().toString();
+    }
+}
+
+/**
+ * Holds an embedded object which is shared between clones, and copied only when one of them changes it
+ * e.g. 1000 clones of a student share one Address, until a clone asks for getForWrite()
+ *
+ * A clone itself is not thread safe, but different clones can be used by different threads
+ */
+class CopyOnWrite<T extends Prototype> {
+
+    // the object along with the number of clones sharing it
+    private static class Shared<T> {
+        final T value;
+        final AtomicInteger owners = new AtomicInteger(1);
+
+        Shared(T value) {
+            this.value = value;
+        }
+    }
+
+    private Shared<T> shared;
 
-}
\ No newline at end of file
+    CopyOnWrite(T value) {
+        this.shared = new Shared<>(value);
+    }
+
+    private CopyOnWrite(Shared<T> shared) {
+        this.shared = shared;
+    }
+
+    // object must not be changed through this reference
+    public T get() {
+        return shared.value;
+    }
+
+    // for the clone, object is shared instead of copied
+    public CopyOnWrite<T> share() {
+        shared.owners.incrementAndGet();
+        return new CopyOnWrite<>(shared);
+    }
+
+    /**
+     * returns object which is not shared with any other clone, copying it if needed
+     * it is private only until the next share() (i.e. next clone()), after which it is shared again;
+     * so the returned reference must not be kept and written later, call getForWrite() again instead
+     * if a clone sharing the object is garbage collected, its share is never given back,
+     * which costs one extra copy on write but never a wrong result
+     */
+    @SuppressWarnings("unchecked")
+    public T getForWrite() {
+        Shared<T> current = shared;
+        if (current.owners.get() > 1) {
+            shared = new Shared<>((T) current.value.clone());
+            current.owners.decrementAndGet();
+        }
+        return shared.value;
+    }
+}
+
+/**
+ * Keeps pre-built objects (templates) by name, new objects are cloned from them instead of being built again
+ */
+class PrototypeRegistry {
+    private final Map<String, Prototype> templates = new ConcurrentHashMap<>();
+
+    public void register(String name, Prototype template) {
+        templates.put(name, template);
+    }
+
+    public Prototype get(String name) {
+        return template(name).clone();
+    }
+
+    /**
+     * fills the whole array with clones of the template, in one tight loop
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Prototype> T[] cloneInto(String name, T[] target) {
+        Prototype template = template(name);
+        if (!target.getClass().getComponentType().isInstance(template)) {
+            throw new IllegalArgumentException("Template " + name + " is not of type " + target.getClass().getComponentType().getSimpleName());
+        }
+        for (int i = 0; i < target.length; i++) {
+            target[i] = (T) template.clone();
+        }
+        return target;
+    }
+
+    public List<Prototype> cloneMany(String name, int count) {
+        return Arrays.asList(cloneInto(name, new Prototype[count]));
+    }
+
+    private Prototype template(String name) {
+        Prototype template = templates.get(name);
+        if (template == null) {
+            throw new IllegalArgumentException("No template registered with name: " + name);
+        }
+        return template;
+    }
+}
+
+/**
+ * Compares time and memory per object: creating StudentClazz with constructor vs bulk cloning from the registry
+ *
+ * Usage: java designpatterns.creational.PrototypeBenchmark [objects]
+ */
+class PrototypeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int objects = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        new BenchmarkRunner()
+                .add("constructor", () -> {
+                    Address address = new Address("Mumbai");
+                    return () -> {
+                        StudentClazz[] students = new StudentClazz[objects];
+                        for (int i = 0; i < objects; i++) {
+                            students[i] = new StudentClazz(123, "abc", address);
+                        }
+                        return students;
+                    };
+                })
+                .add("registry bulk clone", () -> {
+                    PrototypeRegistry registry = new PrototypeRegistry();
+                    registry.register("student", new StudentClazz(123, "abc", new Address("Mumbai")));
+                    return () -> registry.cloneInto("student", new StudentClazz[objects]);
+                })
+                .perElement(objects, "object")
+                .run(args);
+    }
+}
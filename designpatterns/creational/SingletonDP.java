@@ -1,9 +1,24 @@
 package designpatterns.creational;
 
+import designpatterns.benchmark.BenchmarkRunner;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
@@ -18,7 +33,27 @@ public class SingletonDP {
          * 2. Lazy Initialization
          * 3. synchronized keyword
          * 4. Double Locking
+         *
+         * and few more lazy and thread safe ways, without taking any lock after initialization
+         * 5. Holder class
+         * 6. Enum
+         * 7. Double Locking with VarHandle acquire/release
+         *
+         * which one is fastest under contention can be measured using SingletonBenchmark
+         */
+
+        /**
+         * At startup, singletons which do not depend on each other can be initialized in parallel
+         * so that startup takes the time of the longest dependency chain instead of sum of all
+         * (done first, before anything else uses these singletons, otherwise there is nothing left to initialize)
          */
+        Map<String, Long> initNanos = new SingletonStartup()
+                .register("mongo", MongoDbConn::getInstance)
+                .register("mysql", MySqlDbConn::getInstance)
+                .register("docdb", DocDbConn::getInstance, "mongo")
+                .register("dynamo", DynamoDbConn::getInstance, "mysql", "docdb")
+                .start(2);
+        initNanos.forEach((name, nanos) -> System.out.println(name + " initialized in " + nanos + " ns"));
 
         // Object creation is restricted
         // MongoDbConn conn = new MongoDbConn(); // throws compile time error
@@ -38,6 +73,28 @@ public class SingletonDP {
         // double locking
         DynamoDbConn dynamoDbConn = DynamoDbConn.getInstance();
         System.out.println(dynamoDbConn);
+
+        // holder class
+        PostgresDbConn postgresDbConn = PostgresDbConn.getInstance();
+        System.out.println(postgresDbConn);
+
+        // enum
+        OracleDbConn oracleDbConn = OracleDbConn.getInstance();
+        System.out.println(oracleDbConn);
+
+        // double locking with VarHandle
+        CassandraDbConn cassandraDbConn = CassandraDbConn.getInstance();
+        System.out.println(cassandraDbConn);
+
+        /**
+         * Multiton: one instance per key (e.g. per tenant) instead of one per class
+         */
+        TenantDbConn tenantA = TenantDbConn.getInstance("tenant-a");
+        TenantDbConn tenantB = TenantDbConn.getInstance("tenant-b");
+        System.out.println(tenantA);
+        System.out.println(tenantB);
+        // same tenant, same object
+        System.out.println(tenantA == TenantDbConn.getInstance("tenant-a"));
     }
 }
 
@@ -69,7 +126,19 @@ class MySqlDbConn {
 
     private static MySqlDbConn conn;
 
+    // not final, so it is visible to other threads only if the object is published safely
+    private String url;
+
+    // number of objects created, verified by SingletonStressTest
+    static final AtomicInteger CONSTRUCTIONS = new AtomicInteger();
+
     private MySqlDbConn() {
+        CONSTRUCTIONS.incrementAndGet();
+        url = "jdbc:mysql://localhost:3306";
+    }
+
+    public String getUrl() {
+        return url;
     }
 
     public static MySqlDbConn getInstance() {
@@ -96,7 +165,19 @@ class DocDbConn {
     // lazy initialization
     private static DocDbConn conn;
 
-    private DocDbConn(){}
+    private String url;
+
+    // number of objects created, verified by SingletonStressTest
+    static final AtomicInteger CONSTRUCTIONS = new AtomicInteger();
+
+    private DocDbConn(){
+        CONSTRUCTIONS.incrementAndGet();
+        url = "mongodb://localhost:27017";
+    }
+
+    public String getUrl() {
+        return url;
+    }
 
     public static synchronized DocDbConn getInstance(){
         if(conn == null){
@@ -120,9 +201,22 @@ class DocDbConn {
  * this is used in enterprise level application to make object creation thread safe and performant
  */
 class DynamoDbConn {
-    private static DynamoDbConn conn;
+    // volatile is must here, without it a thread might see the reference before constructor has finished
+    private static volatile DynamoDbConn conn;
+
+    private String url;
+
+    // number of objects created, verified by SingletonStressTest
+    static final AtomicInteger CONSTRUCTIONS = new AtomicInteger();
 
-    private DynamoDbConn(){}
+    private DynamoDbConn(){
+        CONSTRUCTIONS.incrementAndGet();
+        url = "http://localhost:8000";
+    }
+
+    public String getUrl() {
+        return url;
+    }
 
     public static DynamoDbConn getInstance(){
         if(conn == null){
@@ -140,5 +234,438 @@ class DynamoDbConn {
      * this implementation is performant and thread safe as well
      * synchronized block will allow only one thread to enter even if two threads arrive at same time
      * and since we are checking {if conn==null} twice, object will be created once
+     * volatile makes sure that other threads see the fully constructed object
+     */
+}
+
+/**
+ * Singleton pattern using holder class
+ * JVM loads the Holder class (and creates the object) only on first invocation of getInstance() method
+ */
+class PostgresDbConn {
+
+    private PostgresDbConn() {
+    }
+
+    private static class Holder {
+        private static final PostgresDbConn CONN = new PostgresDbConn();
+    }
+
+    public static PostgresDbConn getInstance() {
+        return Holder.CONN;
+    }
+
+    /**
+     * IMPORTANT IMPORTANT IMPORTANT
+     * ------------------------------
+     * this implementation is lazy and thread safe without any lock or volatile read,
+     * class initialization is done only once and JVM takes care of the locking
+     */
+}
+
+/**
+ * Singleton pattern using enum
+ * JVM creates enum constant only once, also it can not be created using reflection or deserialization
+ */
+enum OracleDbConn {
+    INSTANCE;
+
+    public static OracleDbConn getInstance() {
+        return INSTANCE;
+    }
+}
+
+/**
+ * Singleton pattern using double locking with VarHandle
+ * same as DynamoDbConn, but instead of volatile read on every invocation only acquire read is done,
+ * which is enough to see the fully constructed object (object is published with release write)
+ */
+class CassandraDbConn {
+    private static final VarHandle CONN;
+
+    static {
+        try {
+            CONN = MethodHandles.lookup().findStaticVarHandle(CassandraDbConn.class, "conn", CassandraDbConn.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static CassandraDbConn conn;
+
+    private String url;
+
+    // number of objects created, verified by SingletonStressTest
+    static final AtomicInteger CONSTRUCTIONS = new AtomicInteger();
+
+    private CassandraDbConn() {
+        CONSTRUCTIONS.incrementAndGet();
+        url = "cassandra://localhost:9042";
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public static CassandraDbConn getInstance() {
+        CassandraDbConn instance = (CassandraDbConn) CONN.getAcquire();
+        if (instance == null) {
+            synchronized (CassandraDbConn.class) {
+                instance = (CassandraDbConn) CONN.getAcquire();
+                if (instance == null) {
+                    instance = new CassandraDbConn();
+                    CONN.setRelease(instance);
+                }
+            }
+        }
+        return instance;
+    }
+}
+
+/**
+ * Multiton pattern: registry of lazily created instances, one per key
+ * 1. instance which already exists is returned without taking any lock (ConcurrentHashMap.get)
+ * 2. for a missing key only one thread creates the instance, other threads asking for same key
+ *    wait for that result instead of creating duplicates (single-flight)
+ * 3. if creation fails, the key is removed so that next invocation can try again
+ *
+ * factory must not ask the registry for the same key, otherwise it waits for itself
+ */
+class Multiton<K, V> {
+    private final ConcurrentHashMap<K, CompletableFuture<V>> instances = new ConcurrentHashMap<>();
+    private final Function<K, V> factory;
+
+    Multiton(Function<K, V> factory) {
+        this.factory = factory;
+    }
+
+    public V get(K key) {
+        CompletableFuture<V> instance = instances.get(key);
+        if (instance == null) {
+            CompletableFuture<V> newInstance = new CompletableFuture<>();
+            instance = instances.putIfAbsent(key, newInstance);
+            if (instance == null) {
+                // this thread won the race, hence it creates the instance
+                return create(key, newInstance);
+            }
+        }
+        try {
+            return instance.join();
+        } catch (CompletionException e) {
+            // creation failed in the thread which won the race
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Removes the instance if it has been created; an instance still being created is not removed,
+     * otherwise threads waiting for it and threads asking afterwards would get two different instances
+     * returns the removed instance, or null if nothing was removed
+     */
+    public V remove(K key) {
+        CompletableFuture<V> instance = instances.get(key);
+        // failed creation removes its entry before completing, so a completed entry here holds an instance
+        if (instance == null || !instance.isDone() || !instances.remove(key, instance)) {
+            return null;
+        }
+        return instance.getNow(null);
+    }
+
+    public int size() {
+        return instances.size();
+    }
+
+    private V create(K key, CompletableFuture<V> newInstance) {
+        try {
+            V value = factory.apply(key);
+            newInstance.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            instances.remove(key, newInstance);
+            newInstance.completeExceptionally(e);
+            throw e;
+        }
+    }
+}
+
+/**
+ * Connection per tenant, created lazily through the multiton registry
+ */
+class TenantDbConn {
+    private static final Multiton<String, TenantDbConn> CONNECTIONS = new Multiton<>(TenantDbConn::new);
+
+    private final String tenantId;
+
+    private TenantDbConn(String tenantId) {
+        this.tenantId = tenantId;
+    }
+
+    public static TenantDbConn getInstance(String tenantId) {
+        return CONNECTIONS.get(tenantId);
+    }
+
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    @Override
+    public String toString() {
+        return "TenantDbConn[tenantId=" + tenantId + "]";
+    }
+}
+
+/**
+ * Initializes singletons at startup, in parallel wherever dependencies allow
+ * each singleton starts as soon as everything it depends on is initialized
+ */
+class SingletonStartup {
+    private final Map<String, Supplier<?>> initializers = new LinkedHashMap<>();
+    private final Map<String, List<String>> dependencies = new LinkedHashMap<>();
+
+    public SingletonStartup register(String name, Supplier<?> initializer, String... dependsOn) {
+        if (initializers.putIfAbsent(name, initializer) != null) {
+            throw new IllegalArgumentException("Singleton already registered: " + name);
+        }
+        dependencies.put(name, List.of(dependsOn));
+        return this;
+    }
+
+    /**
+     * Initializes every registered singleton using at most given number of threads
+     * returns initialization time (in nanos) of each singleton, in registration order
+     * if initializations fail, singletons depending on them are skipped, the others still run;
+     * once all are done, the failure which happened first is thrown
      */
+    public Map<String, Long> start(int parallelism) {
+        List<String> order = initializationOrder();
+        Map<String, Long> initNanos = new ConcurrentHashMap<>();
+        Map<String, CompletableFuture<Void>> initialized = new LinkedHashMap<>();
+        // allOf fails with any one of the failures, so the first one is kept here
+        AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            for (String name : order) {
+                Runnable init = () -> {
+                    long start = System.nanoTime();
+                    try {
+                        initializers.get(name).get();
+                    } catch (RuntimeException | Error e) {
+                        firstFailure.compareAndSet(null, e);
+                        throw e;
+                    }
+                    initNanos.put(name, System.nanoTime() - start);
+                };
+                CompletableFuture<?>[] dependsOn = dependencies.get(name).stream()
+                        .map(initialized::get)
+                        .toArray(CompletableFuture<?>[]::new);
+                initialized.put(name, CompletableFuture.allOf(dependsOn).thenRunAsync(init, executor));
+            }
+            CompletableFuture.allOf(initialized.values().toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            Throwable failure = firstFailure.get();
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            throw e;
+        } finally {
+            executor.shutdown();
+        }
+
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (String name : initializers.keySet()) {
+            result.put(name, initNanos.get(name));
+        }
+        return result;
+    }
+
+    // dependencies before dependents; fails on unknown dependency or a cycle
+    private List<String> initializationOrder() {
+        List<String> order = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        Set<String> visiting = new HashSet<>();
+        for (String name : initializers.keySet()) {
+            visit(name, visited, visiting, order);
+        }
+        return order;
+    }
+
+    private void visit(String name, Set<String> visited, Set<String> visiting, List<String> order) {
+        if (visited.contains(name)) {
+            return;
+        }
+        if (!visiting.add(name)) {
+            throw new IllegalStateException("Cyclic dependency found at singleton: " + name);
+        }
+        for (String dependency : dependencies.get(name)) {
+            if (!initializers.containsKey(dependency)) {
+                throw new IllegalArgumentException("Singleton " + name + " depends on unknown singleton: " + dependency);
+            }
+            visit(dependency, visited, visiting, order);
+        }
+        visiting.remove(name);
+        visited.add(name);
+        order.add(name);
+    }
+}
+
+/**
+ * Measures getInstance() throughput and average latency of every singleton variant with 1, 2, 4 .. N threads
+ * all threads call getInstance() in a loop for a fixed duration after a warm-up round
+ * every variant is measured in its own JVM, so that variants measured earlier do not affect the later ones
+ *
+ * Usage: java designpatterns.creational.SingletonBenchmark [maxThreads] [measureMillis]
+ */
+class SingletonBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        long measureMillis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+
+        List<Integer> threads = new ArrayList<>();
+        for (int count = 1; count < maxThreads; count *= 2) {
+            threads.add(count);
+        }
+        threads.add(maxThreads);
+
+        new BenchmarkRunner()
+                .add("eager", () -> MongoDbConn::getInstance)
+                .add("lazy (not thread safe)", () -> MySqlDbConn::getInstance)
+                .add("synchronized", () -> DocDbConn::getInstance)
+                .add("double locking", () -> DynamoDbConn::getInstance)
+                .add("holder class", () -> PostgresDbConn::getInstance)
+                .add("enum", () -> OracleDbConn::getInstance)
+                .add("varhandle acquire/release", () -> CassandraDbConn::getInstance)
+                .threads(threads.stream().mapToInt(Integer::intValue).toArray())
+                .measure(measureMillis)
+                .run(args);
+    }
+}
+
+/**
+ * Stress test for the lazy singletons, runs locally without any database or network
+ * In every round all threads call getInstance() at the same moment, then it is verified that
+ * 1. only one object was created (constructor called once) and all threads got that object
+ * 2. every thread sees the object fully constructed (its url is set)
+ * between the rounds the singleton is reset using reflection so that initialization race happens again
+ *
+ * Usage: java designpatterns.creational.SingletonStressTest [rounds] [threads]
+ */
+class SingletonStressTest {
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(4, Runtime.getRuntime().availableProcessors());
+
+        boolean failed = false;
+        // MySqlDbConn is not thread safe, it is expected to fail sooner or later
+        failed |= !stress("lazy", MySqlDbConn::getInstance, MySqlDbConn.class, "conn", MySqlDbConn.CONSTRUCTIONS,
+                conn -> ((MySqlDbConn) conn).getUrl() != null, rounds, threads, false);
+        failed |= !stress("synchronized", DocDbConn::getInstance, DocDbConn.class, "conn", DocDbConn.CONSTRUCTIONS,
+                conn -> ((DocDbConn) conn).getUrl() != null, rounds, threads, true);
+        failed |= !stress("double locking", DynamoDbConn::getInstance, DynamoDbConn.class, "conn", DynamoDbConn.CONSTRUCTIONS,
+                conn -> ((DynamoDbConn) conn).getUrl() != null, rounds, threads, true);
+        failed |= !stress("varhandle acquire/release", CassandraDbConn::getInstance, CassandraDbConn.class, "conn", CassandraDbConn.CONSTRUCTIONS,
+                conn -> ((CassandraDbConn) conn).getUrl() != null, rounds, threads, true);
+        // these are initialized by JVM during class loading, hence can not be reset; raced only once
+        failed |= !stress("eager", MongoDbConn::getInstance, null, null, null, conn -> true, 1, threads, true);
+        failed |= !stress("holder class", PostgresDbConn::getInstance, null, null, null, conn -> true, 1, threads, true);
+        failed |= !stress("enum", OracleDbConn::getInstance, null, null, null, conn -> true, 1, threads, true);
+
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * returns false if a thread-safe singleton failed
+     */
+    private static boolean stress(String name, Supplier<Object> getInstance, Class<?> singletonClass, String instanceField,
+                                  AtomicInteger constructions, Predicate<Object> isConstructed, int rounds, int threads, boolean expectedThreadSafe) throws Exception {
+        Field field = null;
+        if (singletonClass != null) {
+            field = singletonClass.getDeclaredField(instanceField);
+            field.setAccessible(true);
+        }
+        Field resettable = field;
+
+        Object[] results = new Object[threads];
+        // checked by the thread which got the instance, as only that thread can observe a partially constructed one
+        boolean[] constructed = new boolean[threads];
+        AtomicInteger phase = new AtomicInteger();
+        AtomicInteger finished = new AtomicInteger();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            int index = i;
+            workers[i] = new Thread(() -> {
+                for (int r = 1; r <= rounds; r++) {
+                    // busy waiting instead of blocking, so that all threads are released at the same moment
+                    awaitValue(phase, r);
+                    Object instance = getInstance.get();
+                    constructed[index] = isConstructed.test(instance);
+                    results[index] = instance;
+                    finished.incrementAndGet();
+                }
+            });
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        int duplicateRounds = 0;
+        // a thread may overwrite the object created by another one, so all threads return the same object
+        // but two were created; hence constructor calls are counted as well
+        int extraConstructionRounds = 0;
+        int partialObjects = 0;
+        for (int r = 1; r <= rounds; r++) {
+            if (resettable != null) {
+                resettable.set(null, null);
+            }
+            if (constructions != null) {
+                constructions.set(0);
+            }
+            finished.set(0);
+            phase.set(r);
+            awaitValue(finished, threads);
+            boolean duplicate = false;
+            for (int i = 0; i < threads; i++) {
+                duplicate |= results[i] != results[0];
+                if (!constructed[i]) {
+                    partialObjects++;
+                }
+            }
+            if (duplicate) {
+                duplicateRounds++;
+            }
+            if (constructions != null && constructions.get() != 1) {
+                extraConstructionRounds++;
+            }
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        boolean passed = duplicateRounds == 0 && extraConstructionRounds == 0 && partialObjects == 0;
+        System.out.printf("%-28s rounds=%d threads=%d duplicateRounds=%d extraConstructionRounds=%d partialObjects=%d -> %s%n",
+                name, rounds, threads, duplicateRounds, extraConstructionRounds, partialObjects,
+                passed ? "PASS" : expectedThreadSafe ? "FAIL" : "FAIL (expected, not thread safe)");
+        return passed || !expectedThreadSafe;
+    }
+
+    // spins for a while and then yields, so that it also works when there are fewer cores than threads
+    private static void awaitValue(AtomicInteger counter, int value) {
+        int spins = 0;
+        while (counter.get() != value) {
+            if (++spins < 1_000) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    }
 }
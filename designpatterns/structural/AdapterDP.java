@@ -1,6 +1,21 @@
 package designpatterns.structural;
 
+import designpatterns.benchmark.BenchmarkRunner;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
 import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Used to work with existing system, which returns some result that needs to be
@@ -18,6 +33,31 @@ public class AdapterDP {
         TemperatureAdapter temperatureAdapter = new TemperatureAdapterImpl();
         System.out.println(temperatureAdapter.requestTemperature() + " Celsius");
 
+        // converting many readings at once, without creating Double objects
+        double[] readings = {300.00, 273.15, 310.15};
+        double[] converted = new double[readings.length];
+        BulkTemperatureAdapter.convert(readings, converted, TemperatureUnit.FAHRENHEIT);
+        System.out.println(Arrays.toString(converted) + " Fahrenheit");
+
+        // remote weather report is slow, hence caching the temperature for some time
+        SlowWeatherReport slowWeatherReport = new SlowWeatherReport(200, TimeUnit.MILLISECONDS);
+        ExecutorService refresher = Executors.newSingleThreadExecutor();
+        TemperatureAdapter cachingAdapter = new CachingTemperatureAdapter(
+                new TemperatureAdapterImpl(slowWeatherReport), 1000, 300, TimeUnit.MILLISECONDS, refresher);
+        CountDownLatch done = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++) {
+            new Thread(() -> {
+                cachingAdapter.requestTemperature();
+                done.countDown();
+            }).start();
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println(cachingAdapter.requestTemperature() + " Celsius, weather report called " + slowWeatherReport.getCalls() + " time(s)");
+        refresher.shutdown();
     }
 }
 
@@ -44,6 +84,10 @@ class TemperatureAdapterImpl implements  TemperatureAdapter {
         weatherReport = new WeatherReport();
     }
 
+    public TemperatureAdapterImpl(WeatherReport weatherReport){
+        this.weatherReport = weatherReport;
+    }
+
     @Override
     public Double requestTemperature() {
         Double temperatureInKelvin = weatherReport.getTemperature();
@@ -51,3 +95,263 @@ class TemperatureAdapterImpl implements  TemperatureAdapter {
         return temperatureInCelsius;
     }
 }
+
+// Units to which kelvin readings can be converted: value = scale * kelvin + offset
+enum TemperatureUnit {
+    KELVIN(1, 0),
+    CELSIUS(1, -273.15),
+    FAHRENHEIT(1.8, -459.67);
+
+    final double scale;
+    final double offset;
+
+    TemperatureUnit(double scale, double offset) {
+        this.scale = scale;
+        this.offset = offset;
+    }
+
+    public double fromKelvin(double kelvin) {
+        return scale * kelvin + offset;
+    }
+}
+
+/**
+ * Converts many kelvin readings at once on primitive doubles, no Double object is created per reading
+ * conversion is a plain counted loop without branches or calls, which JIT compiles to SIMD instructions
+ */
+class BulkTemperatureAdapter {
+
+    public static void convert(double[] kelvin, double[] target, TemperatureUnit unit) {
+        convert(kelvin, 0, target, 0, kelvin.length, unit);
+    }
+
+    // kelvin and target can be the same array, to convert in place
+    public static void convert(double[] kelvin, int kelvinOffset, double[] target, int targetOffset, int length, TemperatureUnit unit) {
+        // checked without adding offset and length, which could overflow for large values
+        Objects.checkFromIndexSize(kelvinOffset, length, kelvin.length);
+        Objects.checkFromIndexSize(targetOffset, length, target.length);
+        double scale = unit.scale;
+        double offset = unit.offset;
+        for (int i = 0; i < length; i++) {
+            target[targetOffset + i] = scale * kelvin[kelvinOffset + i] + offset;
+        }
+    }
+
+    /**
+     * converts remaining readings of kelvin buffer into target buffer, positions of both buffers are moved
+     * heap buffers are converted through their arrays, direct buffers (e.g. filled by sensor IO) in place
+     */
+    public static void convert(DoubleBuffer kelvin, DoubleBuffer target, TemperatureUnit unit) {
+        int length = kelvin.remaining();
+        if (target.remaining() < length) {
+            throw new IllegalArgumentException("target has space for " + target.remaining() + " of " + length + " readings");
+        }
+        if (kelvin.hasArray() && target.hasArray() && !target.isReadOnly()) {
+            convert(kelvin.array(), kelvin.arrayOffset() + kelvin.position(),
+                    target.array(), target.arrayOffset() + target.position(), length, unit);
+        } else {
+            double scale = unit.scale;
+            double offset = unit.offset;
+            int from = kelvin.position();
+            int to = target.position();
+            for (int i = 0; i < length; i++) {
+                target.put(to + i, scale * kelvin.get(from + i) + offset);
+            }
+        }
+        kelvin.position(kelvin.position() + length);
+        target.position(target.position() + length);
+    }
+}
+
+/**
+ * Cost of converting readings one by one as Double, compared with the bulk conversion
+ * Usage: java designpatterns.structural.TemperatureAdapterBenchmark [readings]
+ */
+class TemperatureAdapterBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        new BenchmarkRunner()
+                .add("boxed Double", () -> {
+                    Double[] readings = new Double[count];
+                    Double[] target = new Double[count];
+                    for (int i = 0; i < count; i++) {
+                        readings[i] = reading(i);
+                    }
+                    return () -> {
+                        for (int i = 0; i < readings.length; i++) {
+                            Double temperatureInKelvin = readings[i];
+                            Double temperatureInCelsius = temperatureInKelvin - 273.15;
+                            target[i] = temperatureInCelsius;
+                        }
+                        return target;
+                    };
+                })
+                .add("bulk double[]", () -> {
+                    double[] readings = new double[count];
+                    double[] target = new double[count];
+                    for (int i = 0; i < count; i++) {
+                        readings[i] = reading(i);
+                    }
+                    return () -> {
+                        BulkTemperatureAdapter.convert(readings, target, TemperatureUnit.CELSIUS);
+                        return target;
+                    };
+                })
+                .add("bulk DoubleBuffer", () -> {
+                    DoubleBuffer readings = ByteBuffer.allocateDirect(count * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+                    DoubleBuffer target = ByteBuffer.allocateDirect(count * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+                    for (int i = 0; i < count; i++) {
+                        readings.put(i, reading(i));
+                    }
+                    return () -> {
+                        BulkTemperatureAdapter.convert(readings.clear(), target.clear(), TemperatureUnit.CELSIUS);
+                        return target;
+                    };
+                })
+                .perElement(count, "reading")
+                .run(args);
+    }
+
+    private static double reading(int i) {
+        return 250 + (i % 100);
+    }
+}
+
+/**
+ * WeatherReport which takes time to respond, like a remote call does
+ */
+class SlowWeatherReport extends WeatherReport {
+    private final long latencyMillis;
+    private final AtomicInteger calls = new AtomicInteger();
+
+    SlowWeatherReport(long latency, TimeUnit unit) {
+        this.latencyMillis = unit.toMillis(latency);
+    }
+
+    @Override
+    public Double getTemperature() {
+        calls.incrementAndGet();
+        try {
+            Thread.sleep(latencyMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while getting temperature", e);
+        }
+        return super.getTemperature();
+    }
+
+    public int getCalls() {
+        return calls.get();
+    }
+}
+
+/**
+ * Adapter over another adapter (decorator), which keeps the temperature for ttl instead of requesting it every time
+ * 1. cached temperature is read from a volatile field, readers never lock or wait
+ * 2. when temperature is older than (ttl - refreshAhead), it is requested again in background, while readers
+ *    keep getting the cached one; so if it is being read regularly it never expires
+ * 3. only when there is no valid temperature readers wait, and all of them wait for one single request
+ */
+class CachingTemperatureAdapter implements TemperatureAdapter {
+    private final TemperatureAdapter temperatureAdapter;
+    private final long ttlNanos;
+    private final long refreshAfterNanos;
+    private final Executor refresher;
+
+    private volatile Snapshot snapshot;
+    // request in progress, if any; shared by everyone who needs the temperature meanwhile
+    private final AtomicReference<CompletableFuture<Snapshot>> inFlight = new AtomicReference<>();
+
+    CachingTemperatureAdapter(TemperatureAdapter temperatureAdapter, long ttl, long refreshAhead, TimeUnit unit, Executor refresher) {
+        if (ttl <= 0 || refreshAhead < 0 || refreshAhead >= ttl) {
+            throw new IllegalArgumentException("ttl must be positive and refreshAhead must be less than ttl");
+        }
+        this.temperatureAdapter = temperatureAdapter;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.refreshAfterNanos = unit.toNanos(ttl - refreshAhead);
+        this.refresher = refresher;
+    }
+
+    @Override
+    public Double requestTemperature() {
+        Snapshot current = snapshot;
+        if (current != null) {
+            long age = System.nanoTime() - current.requestedAt;
+            if (age < ttlNanos) {
+                if (age >= refreshAfterNanos) {
+                    request(current);
+                }
+                return current.temperature;
+            }
+        }
+        try {
+            return request(null).join().temperature;
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * starts a request, unless one is already in progress
+     * @param stale temperature to be refreshed in background, null if caller waits for the request
+     */
+    private CompletableFuture<Snapshot> request(Snapshot stale) {
+        while (true) {
+            CompletableFuture<Snapshot> running = inFlight.get();
+            if (running != null) {
+                return running;
+            }
+            CompletableFuture<Snapshot> request = new CompletableFuture<>();
+            if (inFlight.compareAndSet(null, request)) {
+                Snapshot current = snapshot;
+                boolean refreshed = stale == null
+                        ? current != null && System.nanoTime() - current.requestedAt < ttlNanos
+                        : current != stale;
+                if (refreshed) {
+                    // refreshed by someone else meanwhile
+                    inFlight.set(null);
+                    request.complete(current);
+                } else if (stale != null) {
+                    try {
+                        refresher.execute(() -> load(request));
+                    } catch (RuntimeException e) {
+                        // refresher is shut down or full, cached temperature is used till it expires
+                        inFlight.set(null);
+                        request.completeExceptionally(e);
+                    }
+                } else {
+                    load(request);
+                }
+                return request;
+            }
+        }
+    }
+
+    private void load(CompletableFuture<Snapshot> request) {
+        try {
+            long requestedAt = System.nanoTime();
+            Snapshot loaded = new Snapshot(temperatureAdapter.requestTemperature(), requestedAt);
+            snapshot = loaded;
+            inFlight.set(null);
+            request.complete(loaded);
+        } catch (Throwable e) {
+            // failed refresh keeps the old temperature, next reader tries again
+            inFlight.set(null);
+            request.completeExceptionally(e);
+        }
+    }
+
+    private static class Snapshot {
+        final Double temperature;
+        final long requestedAt;
+
+        Snapshot(Double temperature, long requestedAt) {
+            this.temperature = temperature;
+            this.requestedAt = requestedAt;
+        }
+    }
+}
@@ -1,9 +1,29 @@
 package designpatterns.structural;
 
-import java.util.HashMap;
+import designpatterns.benchmark.BenchmarkRunner;
+
+import java.io.PrintStream;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Used when we need to create lots of objects of class and
@@ -26,6 +46,10 @@ public class FlyweightDP {
      * The sharing of object is done using flyweight factory
      */
     public static void main(String[] args) {
+        // shapes listed in -Dflyweight.prewarm=CIRCLE,LINE are created in background right away (in parallel),
+        // a request arriving before that finishes waits for the shape being created
+        FlyweightFactory.prewarmFromConfig();
+
         IShape shape;
         for (int i = 0; i < 20; i++) {
             if(i%2==0){
@@ -37,12 +61,165 @@ public class FlyweightDP {
         }
         /**
          * you will see for the first time...object creation takes time...after that operations are quick
+         *
+         * FlyweightFactory is thread safe: if many threads ask for same shape at the same time,
+         * only one of them creates it and the others wait for that same object
+         */
+
+        /**
+         * When lots of shapes of same type are drawn, extrinsic properties (coordinates) can be passed
+         * all at once, to be drawn with a single write instead of a call (and two prints) per shape
          */
+        ShapeBatch circles = new ShapeBatch(5);
+        for (int i = 0; i < 5; i++) {
+            circles.add(i+1, i+2, i+3, i+4);
+        }
+        FlyweightFactory.getShape(ShapeType.CIRCLE).drawBatch(circles);
+
+        // or packed as x1, y1, x2, y2 of one shape after another
+        IntBuffer lines = IntBuffer.wrap(new int[]{1, 2, 3, 4, 5, 6, 7, 8});
+        FlyweightFactory.getShape(ShapeType.LINE).drawBatch(lines);
     }
 }
 
 interface IShape {
     void draw(int x1, int y1, int x2, int y2);
+
+    // draws one by one, shapes can override it to draw the whole batch at once
+    default void drawBatch(ShapeBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            draw(batch.x1[i], batch.y1[i], batch.x2[i], batch.y2[i]);
+        }
+    }
+
+    // coordinates packed as x1, y1, x2, y2 of one shape after another; read in place, not copied
+    default void drawBatch(IntBuffer packed) {
+        ShapeBatch.checkPacked(packed);
+        for (int i = packed.position(); i < packed.limit(); i += 4) {
+            draw(packed.get(i), packed.get(i + 1), packed.get(i + 2), packed.get(i + 3));
+        }
+    }
+}
+
+/**
+ * Extrinsic properties (coordinates) of many shapes, kept as parallel arrays of int (struct-of-arrays)
+ * instead of one object per shape
+ */
+class ShapeBatch {
+    // characters rendered before writing them out
+    private static final int CHUNK_SIZE = 8192;
+
+    int[] x1;
+    int[] y1;
+    int[] x2;
+    int[] y2;
+    private int size;
+
+    ShapeBatch(int capacity) {
+        x1 = new int[capacity];
+        y1 = new int[capacity];
+        x2 = new int[capacity];
+        y2 = new int[capacity];
+    }
+
+    public ShapeBatch add(int x1, int y1, int x2, int y2) {
+        if (size == this.x1.length) {
+            int capacity = Math.max(8, size * 2);
+            this.x1 = Arrays.copyOf(this.x1, capacity);
+            this.y1 = Arrays.copyOf(this.y1, capacity);
+            this.x2 = Arrays.copyOf(this.x2, capacity);
+            this.y2 = Arrays.copyOf(this.y2, capacity);
+        }
+        this.x1[size] = x1;
+        this.y1[size] = y1;
+        this.x2[size] = x2;
+        this.y2[size] = y2;
+        size++;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // batch can be reused, arrays are kept
+    public void clear() {
+        size = 0;
+    }
+
+    static void checkPacked(IntBuffer packed) {
+        if (packed.remaining() % 4 != 0) {
+            throw new IllegalArgumentException("Packed coordinates must be multiple of 4 (x1, y1, x2, y2)");
+        }
+    }
+
+    /**
+     * Writes same text as IShape.draw() prints for each shape, without printf formatting
+     * text is built in a small buffer which is written out and reused whenever it fills up,
+     * so memory used does not grow with the number of shapes
+     */
+    void render(String shapeType, String startLabel, PrintStream out) {
+        StringBuilder chunk = new StringBuilder(CHUNK_SIZE + 128);
+        for (int i = 0; i < size; i++) {
+            appendShape(chunk, shapeType, startLabel, x1[i], y1[i], x2[i], y2[i], out);
+        }
+        out.append(chunk);
+    }
+
+    // same as render(), reading packed coordinates in place
+    static void render(IntBuffer packed, String shapeType, String startLabel, PrintStream out) {
+        checkPacked(packed);
+        StringBuilder chunk = new StringBuilder(CHUNK_SIZE + 128);
+        for (int i = packed.position(); i < packed.limit(); i += 4) {
+            appendShape(chunk, shapeType, startLabel, packed.get(i), packed.get(i + 1), packed.get(i + 2), packed.get(i + 3), out);
+        }
+        out.append(chunk);
+    }
+
+    private static void appendShape(StringBuilder chunk, String shapeType, String startLabel,
+                                    int x1, int y1, int x2, int y2, PrintStream out) {
+        chunk.append("Drawing: ").append(shapeType).append('\n')
+                .append(startLabel).append(": (").append(x1).append(',').append(y1)
+                .append(") <> End: (").append(x2).append(',').append(y2).append(")\n");
+        if (chunk.length() >= CHUNK_SIZE) {
+            out.append(chunk);
+            chunk.setLength(0);
+        }
+    }
+}
+
+/**
+ * Known shape types, used as key of the flyweight factory
+ */
+enum ShapeType {
+    CIRCLE(CircleShape::new),
+    LINE(LineShape::new);
+
+    // values() returns a new array on every invocation, hence kept once
+    private static final ShapeType[] TYPES = values();
+
+    private final Supplier<IShape> creator;
+
+    ShapeType(Supplier<IShape> creator) {
+        this.creator = creator;
+    }
+
+    IShape create() {
+        return creator.get();
+    }
+
+    /**
+     * Case-insensitive match without creating any new string (unlike toUpperCase)
+     * returns null if shapeType is not a known type
+     */
+    static ShapeType of(String shapeType) {
+        for (ShapeType type : TYPES) {
+            if (type.name().equalsIgnoreCase(shapeType)) {
+                return type;
+            }
+        }
+        return null;
+    }
 }
 
 class CircleShape implements IShape {
@@ -70,6 +247,17 @@ class CircleShape implements IShape {
         System.out.println("Drawing: "+ shapeType);
         System.out.printf("Start: (%d,%d) <> End: (%d,%d)\n",x1, y1, x2, y2);
     }
+
+    @Override
+    public void drawBatch(ShapeBatch batch) {
+        // written in chunks instead of a call (and two prints) per shape
+        batch.render(shapeType, "Start", System.out);
+    }
+
+    @Override
+    public void drawBatch(IntBuffer packed) {
+        ShapeBatch.render(packed, shapeType, "Start", System.out);
+    }
 }
 
 class LineShape implements IShape {
@@ -97,27 +285,350 @@ class LineShape implements IShape {
         System.out.println("Drawing: "+ shapeType);
         System.out.printf("Center: (%d,%d) <> End: (%d,%d)\n",x1, y1, x2, y2);
     }
+
+    @Override
+    public void drawBatch(ShapeBatch batch) {
+        // written in chunks instead of a call (and two prints) per shape
+        batch.render(shapeType, "Center", System.out);
+    }
+
+    @Override
+    public void drawBatch(IntBuffer packed) {
+        ShapeBatch.render(packed, shapeType, "Center", System.out);
+    }
 }
 
 
 // Flyweight factory
+// thread safe: a shape being created by one thread is awaited by other threads instead of being created again
 class FlyweightFactory {
-    private static Map<String, IShape> shapes = new HashMap<>();
+    // known shapes, indexed by ShapeType ordinal; lookup allocates nothing
+    private static final AtomicReferenceArray<CompletableFuture<IShape>> knownShapes =
+            new AtomicReferenceArray<>(ShapeType.values().length);
+    // shapes of unknown types; type comes from user input, hence number of such shapes kept is limited
+    private static final BoundedFlyweightCache<String, IShape> unknownShapes =
+            new BoundedFlyweightCache<>(Integer.getInteger("flyweight.maxUnknownShapes", 1000));
 
     public static IShape getShape(String shapeType){
-        IShape shape = shapes.get(shapeType.toUpperCase(Locale.ROOT));
-        if(Objects.isNull(shape)){
-            if("CIRCLE".equalsIgnoreCase(shapeType)){
-                shape = new CircleShape();
-            } else if ("Line".equalsIgnoreCase(shapeType)) {
-                shape = new LineShape();
-            } else{
-                shape = (x1, y1, x2, y2) -> {
-                    System.out.println("Unknown Shape");
-                };
+        ShapeType type = ShapeType.of(shapeType);
+        if (Objects.nonNull(type)) {
+            return getShape(type);
+        }
+        return unknownShapes.get(shapeType.toUpperCase(Locale.ROOT), key -> (x1, y1, x2, y2) -> {
+            System.out.println("Unknown Shape");
+        });
+    }
+
+    // hit, miss and eviction counts of unknown shapes
+    public static BoundedFlyweightCache<String, IShape> getUnknownShapes() {
+        return unknownShapes;
+    }
+
+    /**
+     * Creates the shapes of given (comma separated) types from -Dflyweight.prewarm in background
+     */
+    public static CompletableFuture<Void> prewarmFromConfig() {
+        String shapeTypes = System.getProperty("flyweight.prewarm", "");
+        if (shapeTypes.isBlank()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return prewarm(Arrays.asList(shapeTypes.split(",")));
+    }
+
+    /**
+     * Creates the shapes of given types in background, in parallel
+     * returned future completes when all of them are created
+     */
+    public static CompletableFuture<Void> prewarm(Collection<String> shapeTypes) {
+        List<CompletableFuture<IShape>> warming = new ArrayList<>();
+        List<Runnable> creations = new ArrayList<>();
+        for (String shapeType : shapeTypes) {
+            ShapeType type = ShapeType.of(shapeType.trim());
+            // unknown shapes are cheap to create, nothing to warm up
+            if (Objects.isNull(type)) {
+                continue;
+            }
+            int index = type.ordinal();
+            CompletableFuture<IShape> shape = knownShapes.get(index);
+            // failed creation empties the slot again, so it is retried till it holds a shape (created or being created)
+            while (Objects.isNull(shape)) {
+                CompletableFuture<IShape> newShape = new CompletableFuture<>();
+                // slot is taken right now, so requests arriving from now on wait for this shape instead of creating it
+                if (knownShapes.compareAndSet(index, null, newShape)) {
+                    creations.add(() -> createShape(type::create, newShape, () -> knownShapes.compareAndSet(index, newShape, null)));
+                    shape = newShape;
+                } else {
+                    shape = knownShapes.get(index);
+                }
+            }
+            warming.add(shape);
+        }
+        if (!creations.isEmpty()) {
+            ExecutorService executor = Executors.newFixedThreadPool(creations.size(), runnable -> {
+                Thread thread = new Thread(runnable, "flyweight-prewarm");
+                thread.setDaemon(true);
+                return thread;
+            });
+            for (Runnable creation : creations) {
+                executor.execute(() -> {
+                    try {
+                        creation.run();
+                    } catch (RuntimeException | Error e) {
+                        // failure is reported through the future, shape will be created again on request
+                    }
+                });
+            }
+            // threads finish the queued creations and then exit
+            executor.shutdown();
+        }
+        return CompletableFuture.allOf(warming.toArray(new CompletableFuture<?>[0]));
+    }
+
+    public static IShape getShape(ShapeType shapeType) {
+        int index = shapeType.ordinal();
+        CompletableFuture<IShape> shape = knownShapes.get(index);
+        // failed creation empties the slot again, so it is retried till it holds a shape (created or being created)
+        while (Objects.isNull(shape)) {
+            CompletableFuture<IShape> newShape = new CompletableFuture<>();
+            if (knownShapes.compareAndSet(index, null, newShape)) {
+                return createShape(shapeType::create, newShape, () -> knownShapes.compareAndSet(index, newShape, null));
+            }
+            shape = knownShapes.get(index);
+        }
+        return await(shape);
+    }
+
+    // waits for the flyweight which might be still under creation by another thread
+    static <V> V await(CompletableFuture<V> flyweight) {
+        try {
+            return flyweight.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static IShape createShape(Supplier<IShape> creator, CompletableFuture<IShape> newShape, Runnable forget) {
+        try {
+            IShape shape = creator.get();
+            newShape.complete(shape);
+            return shape;
+        } catch (RuntimeException | Error e) {
+            // let the next request try again
+            forget.run();
+            newShape.completeExceptionally(e);
+            throw e;
+        }
+    }
+}
+
+/**
+ * Flyweight store which keeps at most maxSize flyweights
+ * 1. like FlyweightFactory, a flyweight being created by one thread is awaited by the others (single-flight)
+ * 2. eviction follows CLOCK (second chance) policy, which is close to LRU but cheaper:
+ *    a hit only marks the entry as referenced, no locking or reordering as in access-ordered LinkedHashMap;
+ *    when store is full, entries are visited in insertion order, a referenced entry gets a second chance
+ *    (mark is cleared and it goes to the back), first entry not referenced since last visit is evicted
+ *    a miss evicts and inserts while holding the lock, so maxSize holds even when many threads miss at once;
+ *    hits never take the lock
+ * 3. hits, misses and evictions are counted, to help choosing maxSize
+ */
+class BoundedFlyweightCache<K, V> {
+    private final int maxSize;
+    private final ConcurrentHashMap<K, Entry<K, V>> entries = new ConcurrentHashMap<>();
+    // clock hand walks over this queue
+    private final ConcurrentLinkedQueue<Entry<K, V>> clock = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    BoundedFlyweightCache(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        }
+        this.maxSize = maxSize;
+    }
+
+    public V get(K key, Function<K, V> factory) {
+        Entry<K, V> entry = entries.get(key);
+        if (Objects.isNull(entry)) {
+            Entry<K, V> newEntry = new Entry<>(key);
+            // entries are added only under the lock, hence size can not go over maxSize
+            evictionLock.lock();
+            try {
+                entry = entries.get(key);
+                if (Objects.isNull(entry)) {
+                    evictToFit();
+                    entries.put(key, newEntry);
+                    clock.offer(newEntry);
+                    misses.increment();
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+            // created outside the lock, so that a slow creation does not block other misses
+            if (Objects.isNull(entry)) {
+                return create(newEntry, factory);
+            }
+        }
+        hits.increment();
+        // skip the write if already marked, keeps the cache line shared between cores
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return FlyweightFactory.await(entry.value);
+    }
+
+    private V create(Entry<K, V> entry, Function<K, V> factory) {
+        try {
+            V value = factory.apply(entry.key);
+            entry.value.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            // let the next request try again
+            entries.remove(entry.key, entry);
+            entry.value.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    // makes room for one more entry, called with evictionLock held
+    private void evictToFit() {
+        while (entries.size() >= maxSize) {
+            Entry<K, V> entry = clock.poll();
+            if (Objects.isNull(entry)) {
+                return;
             }
-            shapes.put(shapeType, shape);
+            // already removed (creation failed)
+            if (entries.get(entry.key) != entry) {
+                continue;
+            }
+            if (entry.referenced) {
+                entry.referenced = false;
+                clock.offer(entry);
+            } else if (entries.remove(entry.key, entry)) {
+                evictions.increment();
+            }
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size() + "/" + maxSize + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions();
+    }
+
+    private static class Entry<K, V> {
+        final K key;
+        final CompletableFuture<V> value = new CompletableFuture<>();
+        volatile boolean referenced;
+
+        Entry(K key) {
+            this.key = key;
         }
-        return shape;
     }
-}
\ No newline at end of file
+}
+
+/**
+ * Measures time and memory allocated per FlyweightFactory.getShape(String) call
+ * compared with the earlier lookup, which upper-cased the key (new String) on every call
+ *
+ * Usage: java designpatterns.structural.FlyweightBenchmark
+ */
+class FlyweightBenchmark {
+    private static final String[] SPELLINGS = {"CIRCLE", "circle", "Line", "LINE", "line", "Circle"};
+
+    public static void main(String[] args) throws Exception {
+        new BenchmarkRunner()
+                .add("ShapeType lookup", () -> {
+                    prewarm();
+                    return cycle(FlyweightFactory::getShape);
+                })
+                .add("toUpperCase lookup", () -> {
+                    prewarm();
+                    Map<String, IShape> upperCaseKeyed = new ConcurrentHashMap<>();
+                    upperCaseKeyed.put("CIRCLE", FlyweightFactory.getShape(ShapeType.CIRCLE));
+                    upperCaseKeyed.put("LINE", FlyweightFactory.getShape(ShapeType.LINE));
+                    return cycle(spelling -> upperCaseKeyed.get(spelling.toUpperCase(Locale.ROOT)));
+                })
+                .run(args);
+    }
+
+    // pay the construction cost (5 seconds per shape) up front, in parallel
+    private static void prewarm() {
+        FlyweightFactory.prewarm(List.of("CIRCLE", "LINE")).join();
+    }
+
+    // looks up the spellings one after another
+    private static Supplier<IShape> cycle(Function<String, IShape> lookup) {
+        int[] next = {0};
+        return () -> {
+            int index = next[0];
+            next[0] = index + 1 == SPELLINGS.length ? 0 : index + 1;
+            return lookup.apply(SPELLINGS[index]);
+        };
+    }
+}
+
+/**
+ * Checks that BoundedFlyweightCache never holds more than maxSize entries while many threads insert distinct keys
+ * Usage: java designpatterns.structural.BoundedFlyweightCacheStressTest [keysPerThread] [threads]
+ */
+class BoundedFlyweightCacheStressTest {
+
+    public static void main(String[] args) throws Exception {
+        int keysPerThread = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Math.max(8, Runtime.getRuntime().availableProcessors());
+        int maxSize = 100;
+
+        BoundedFlyweightCache<String, String> cache = new BoundedFlyweightCache<>(maxSize);
+        AtomicInteger largestSize = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            int thread = i;
+            workers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int k = 0; k < keysPerThread; k++) {
+                    cache.get(thread + "-" + k, key -> key);
+                    largestSize.accumulateAndGet(cache.size(), Math::max);
+                }
+            });
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        boolean passed = largestSize.get() <= maxSize && cache.size() <= maxSize;
+        System.out.printf("threads=%d keys=%d maxSize=%d largestSize=%d %s -> %s%n",
+                threads, threads * keysPerThread, maxSize, largestSize.get(), cache, passed ? "PASS" : "FAIL");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+}